@@ -0,0 +1,124 @@
+package mosaicgenerator.bench;
+
+/* ************************************************************************* *
+ *                                Bench Data                                 *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Synthetic tiles and source images for the benchmarks. Everything is    *
+ * made from fixed seeds, so every run and every version of the code is     *
+ * measured on exactly the same pixels.                                      *
+ *                                                                           *
+ *    Tiles are gradients between two random colours with a few random      *
+ * rectangles on top, which gives the signatures and the index about as     *
+ * much to work with as photos do. Sources are smooth colour fields with    *
+ * noise, so neighbouring cells are similar but never equal.                *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BenchData {
+   public static final int TILE_SIZE = 128;
+
+   private static final long TILE_SEED = 0x7113L;
+   private static final long SOURCE_SEED = 0x5011CEL;
+
+   /**
+    * @return Image type for a benchmark parameter, "BGR" or "ABGR".
+    */
+   public static int imageType(String name) {
+      switch(name) {
+      case "BGR":
+         return BufferedImage.TYPE_3BYTE_BGR;
+      case "ABGR":
+         return BufferedImage.TYPE_4BYTE_ABGR;
+      default:
+         throw new IllegalArgumentException("Unknown image type " + name);
+      }
+   }
+
+   /**
+    * @return Width and height for a benchmark parameter such as "640x480".
+    */
+   public static int[] size(String name) {
+      int x = name.indexOf('x');
+      return new int[] {Integer.parseInt(name.substring(0, x)),
+                        Integer.parseInt(name.substring(x + 1))};
+   }
+
+   /**
+    * Makes the tiles. The first tiles are the same whatever the count.
+    */
+   public static List<BufferedImage> tiles(int count, int type) {
+      Random random = new Random(TILE_SEED);
+      boolean alpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+      List<BufferedImage> tiles = new ArrayList<>(count);
+      for(int i = 0; i < count; i++) {
+         BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, type);
+         Graphics2D g2 = tile.createGraphics();
+         g2.setPaint(new GradientPaint(0, 0, colour(random, alpha),
+               random.nextInt(TILE_SIZE), TILE_SIZE,
+               colour(random, alpha)));
+         g2.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+         for(int r = 0; r < 4; r++) {
+            g2.setColor(colour(random, alpha));
+            g2.fillRect(random.nextInt(TILE_SIZE), random.nextInt(TILE_SIZE),
+                  1 + random.nextInt(TILE_SIZE/2),
+                  1 + random.nextInt(TILE_SIZE/2));
+         }
+         g2.dispose();
+         tiles.add(tile);
+      }
+      return tiles;
+   }
+
+   /**
+    * Makes a source image.
+    */
+   public static BufferedImage source(int width, int height, int type) {
+      Random random = new Random(SOURCE_SEED);
+      boolean alpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+      BufferedImage image = new BufferedImage(width, height, type);
+      Graphics2D g2 = image.createGraphics();
+      g2.setPaint(new GradientPaint(0, 0, colour(random, alpha),
+            width, height, colour(random, alpha)));
+      g2.fillRect(0, 0, width, height);
+      for(int i = 0; i < 64; i++) {
+         g2.setColor(colour(random, alpha));
+         int w = 1 + random.nextInt(Math.max(1, width/4));
+         int h = 1 + random.nextInt(Math.max(1, height/4));
+         g2.fillOval(random.nextInt(width) - w/2, random.nextInt(height) - h/2,
+               w, h);
+      }
+      g2.dispose();
+
+      for(int y = 0; y < height; y++) {
+         for(int x = 0; x < width; x++) {
+            int argb = image.getRGB(x, y);
+            int noise = random.nextInt(17) - 8;
+            image.setRGB(x, y, (argb & 0xff000000)
+                  | clamp((argb >> 16 & 0xff) + noise) << 16
+                  | clamp((argb >> 8 & 0xff) + noise) << 8
+                  | clamp((argb & 0xff) + noise));
+         }
+      }
+      return image;
+   }
+
+   private static Color colour(Random random, boolean alpha) {
+      return new Color(random.nextInt(256), random.nextInt(256),
+            random.nextInt(256), alpha ? 128 + random.nextInt(128) : 255);
+   }
+
+   private static int clamp(int value) {
+      return Math.max(0, Math.min(255, value));
+   }
+}
@@ -0,0 +1,97 @@
+package mosaicgenerator.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mosaicgenerator.utils.MosaicEngine;
+import mosaicgenerator.utils.Settings;
+import mosaicgenerator.utils.TileCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole runs of the engine with the default settings, apart from the ones
+ * given as parameters. "cold" runs prepare the tiles as part of the run;
+ * "warm" runs reuse a prepared catalog, as the application does from the
+ * second mosaic on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class EndToEndBenchmark {
+   private static final int TILE_SIZE = 32;
+
+   private static final MosaicEngine.Listener LISTENER =
+         new MosaicEngine.Listener() {
+      @Override
+      public void preview(BufferedImage frame) {
+      }
+      @Override
+      public boolean isCancelled() {
+         return false;
+      }
+   };
+
+   @Param({"640x480", "1920x1080"})
+   public String sourceSize;
+
+   @Param({"8", "15", "30"})
+   public int cellSize;
+
+   @Param({"256", "2048"})
+   public int tileCount;
+
+   @Param({"BGR", "ABGR"})
+   public String imageType;
+
+   private BufferedImage mSource;
+   private List<BufferedImage> mTiles;
+   private Settings mSettings;
+   private TileCatalog mCatalog;
+
+   @Setup
+   public void setUp() throws IOException {
+      int type = BenchData.imageType(imageType);
+      int size[] = BenchData.size(sourceSize);
+      mSource = BenchData.source(size[0], size[1], type);
+      mTiles = BenchData.tiles(tileCount, type);
+
+      mSettings = Settings.defaults();
+      mSettings.cellWidth = mSettings.cellHeight = cellSize;
+      mSettings.tileWidth = mSettings.tileHeight = TILE_SIZE;
+      mSettings.libraryFile = null;
+      mSettings.progressivePreview = false;
+
+      MosaicEngine engine = new MosaicEngine(mSource, mTiles, null, null,
+            mSettings, null);
+      engine.run(LISTENER);
+      mCatalog = engine.getCatalog();
+   }
+
+   @Benchmark
+   public BufferedImage cold() throws IOException {
+      return new MosaicEngine(mSource, mTiles, null, null, mSettings, null)
+            .run(LISTENER);
+   }
+
+   @Benchmark
+   public BufferedImage warm() throws IOException {
+      return new MosaicEngine(mSource, mTiles, null, null, mSettings,
+            mCatalog).run(LISTENER);
+   }
+}
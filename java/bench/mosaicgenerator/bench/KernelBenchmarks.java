@@ -0,0 +1,154 @@
+package mosaicgenerator.bench;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import mosaicgenerator.utils.MismatchKernels;
+import mosaicgenerator.utils.TileCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scalar and the Vector API mismatch kernels on the same full scan of
+ * a sample of cells against every tile. Needs Java 16 or later, since the
+ * forks add jdk.incubator.vector.
+ *
+ * Setting up checks that the "vector" kernel really is the Vector API one
+ * and that it picks the same tile as the scalar kernel for every cell of
+ * the source, so the scores compare two ways of making the same mosaic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g",
+      "--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmarks {
+   private static final int SOURCE_WIDTH = 640;
+   private static final int SOURCE_HEIGHT = 480;
+   private static final int TILE_SIZE = 64;
+   private static final int SAMPLE_CELLS = 64;
+
+   @Param({"scalar", "vector"})
+   public String kernel;
+
+   @Param({"8", "15", "30"})
+   public int cellSize;
+
+   @Param({"256", "2048"})
+   public int tileCount;
+
+   @Param({"BGR", "ABGR"})
+   public String imageType;
+
+   private TileCatalog mCatalog;
+   private byte mSource[];
+   private int mPixelStride;
+   private int mScanlineStride;
+   private int mCols, mRows;
+   private int mSample[];
+
+   private MismatchKernels mKernels;
+
+   @Setup
+   public void setUp() {
+      int type = BenchData.imageType(imageType);
+      mCatalog = new TileCatalog(BenchData.tiles(tileCount, type),
+            new Dimension(cellSize, cellSize),
+            new Dimension(TILE_SIZE, TILE_SIZE), type);
+      ForkJoinPool pool = new ForkJoinPool();
+      mCatalog.prepareAll(pool);
+      pool.shutdown();
+
+      BufferedImage source = BenchData.source(SOURCE_WIDTH, SOURCE_HEIGHT,
+            type);
+      mSource = ((DataBufferByte)source.getRaster().getDataBuffer()).getData();
+      mPixelStride = mCatalog.pixelStride();
+      mScanlineStride = SOURCE_WIDTH*mPixelStride;
+      mCols = SOURCE_WIDTH/cellSize;
+      mRows = SOURCE_HEIGHT/cellSize;
+
+      int cells = mCols*mRows;
+      mSample = new int[Math.min(SAMPLE_CELLS, cells)];
+      for(int i = 0; i < mSample.length; i++) {
+         mSample[i] = (int)((long)i*cells/mSample.length);
+      }
+
+      boolean vector = "vector".equals(kernel);
+      mKernels = MismatchKernels.create(cellSize, cellSize,
+            mCatalog.hasAlpha(), vector);
+      if(mKernels.isVector() != vector) {
+         throw new IllegalStateException("The Vector API kernels could "
+               + "not be loaded.");
+      }
+      MismatchKernels scalar = MismatchKernels.create(cellSize, cellSize,
+            mCatalog.hasAlpha(), false);
+      for(int cell = 0; cell < cells; cell++) {
+         if(scan(mKernels, cell) != scan(scalar, cell)) {
+            throw new IllegalStateException("The " + kernel + " kernel "
+                  + "picks another tile for cell " + cell + ".");
+         }
+      }
+   }
+
+   private int cellOffset(int cell) {
+      int col = cell/mRows, row = cell%mRows;
+      return row*cellSize*mScanlineStride + col*cellSize*mPixelStride;
+   }
+
+   private int scan(MismatchKernels kernels, int cell) {
+      int offset = cellOffset(cell);
+      byte pixels[] = mCatalog.pixels();
+      int best = -1, bestMismatch = Integer.MAX_VALUE;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         int mismatch = kernels.mismatch(mSource, offset, mScanlineStride,
+               cellSize, cellSize, pixels, mCatalog.offset(tile),
+               bestMismatch);
+         if(mismatch < bestMismatch) {
+            bestMismatch = mismatch;
+            best = tile;
+         }
+      }
+      return best;
+   }
+
+   /** Matches the sample cells against every tile with early exit. */
+   @Benchmark
+   public int scanTiles() {
+      int sum = 0;
+      for(int cell: mSample) {
+         sum += scan(mKernels, cell);
+      }
+      return sum;
+   }
+
+   /** Compares the sample cells with every tile in full. */
+   @Benchmark
+   public long fullMismatch() {
+      long sum = 0;
+      byte pixels[] = mCatalog.pixels();
+      for(int cell: mSample) {
+         int offset = cellOffset(cell);
+         for(int tile = 0; tile < mCatalog.size(); tile++) {
+            sum += mKernels.mismatch(mSource, offset, mScanlineStride,
+                  cellSize, cellSize, pixels, mCatalog.offset(tile),
+                  Integer.MAX_VALUE);
+         }
+      }
+      return sum;
+   }
+}
@@ -0,0 +1,250 @@
+package mosaicgenerator.bench;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import mosaicgenerator.utils.MismatchKernels;
+import mosaicgenerator.utils.PngStreamWriter;
+import mosaicgenerator.utils.TileCatalog;
+import mosaicgenerator.utils.TileIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages of making a mosaic one at a time: preparing the tiles,
+ * signing the cells, matching cells against the tiles by full scan and
+ * through the index, drawing the selected tiles and encoding the result.
+ *
+ * The matching benchmarks measure the same sample of cells every time, so
+ * their scores are per sample rather than per mosaic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class StageBenchmarks {
+   private static final int SOURCE_WIDTH = 640;
+   private static final int SOURCE_HEIGHT = 480;
+   private static final int TILE_SIZE = 64;
+   private static final int SAMPLE_CELLS = 64;
+
+   @Param({"8", "15", "30"})
+   public int cellSize;
+
+   @Param({"256", "2048"})
+   public int tileCount;
+
+   @Param({"BGR", "ABGR"})
+   public String imageType;
+
+   private List<BufferedImage> mTiles;
+   private int mType;
+   private ForkJoinPool mPool;
+   private TileCatalog mCatalog;
+
+   private byte mSource[];
+   private int mPixelStride;
+   private int mScanlineStride;
+   private int mCols, mRows;
+   private int mSample[];
+
+   private MismatchKernels mKernels;
+
+   private int mSelected[][];
+   private BufferedImage mMosaic;
+   private File mOutput;
+
+   @Setup
+   public void setUp() throws IOException {
+      mType = BenchData.imageType(imageType);
+      mTiles = BenchData.tiles(tileCount, mType);
+      mPool = new ForkJoinPool();
+      mCatalog = newCatalog();
+      mCatalog.prepareAll(mPool);
+      mCatalog.index();
+
+      BufferedImage source = BenchData.source(SOURCE_WIDTH, SOURCE_HEIGHT,
+            mType);
+      mSource = ((DataBufferByte)source.getRaster().getDataBuffer()).getData();
+      mPixelStride = mCatalog.pixelStride();
+      mScanlineStride = SOURCE_WIDTH*mPixelStride;
+      mCols = SOURCE_WIDTH/cellSize;
+      mRows = SOURCE_HEIGHT/cellSize;
+
+      // Full cells spread evenly over the image.
+      int cells = mCols*mRows;
+      mSample = new int[Math.min(SAMPLE_CELLS, cells)];
+      for(int i = 0; i < mSample.length; i++) {
+         mSample[i] = (int)((long)i*cells/mSample.length);
+      }
+
+      boolean alpha = mCatalog.hasAlpha();
+      mKernels = new MismatchKernels(cellSize, cellSize, alpha);
+
+      mSelected = new int[mCols][mRows];
+      for(int i = 0; i < mCols; i++) {
+         for(int j = 0; j < mRows; j++) {
+            mSelected[i][j] = nearest(i*mRows + j);
+         }
+      }
+      mMosaic = draw();
+      mOutput = File.createTempFile("stage", ".png");
+   }
+
+   @TearDown
+   public void tearDown() {
+      mPool.shutdown();
+      mOutput.delete();
+   }
+
+   private TileCatalog newCatalog() {
+      return new TileCatalog(mTiles, new Dimension(cellSize, cellSize),
+            new Dimension(TILE_SIZE, TILE_SIZE), mType);
+   }
+
+   private int cellOffset(int cell) {
+      int col = cell/mRows, row = cell%mRows;
+      return row*cellSize*mScanlineStride + col*cellSize*mPixelStride;
+   }
+
+   private int nearest(int cell) {
+      float query[] = new float[TileIndex.SIGNATURE_LENGTH];
+      int offset = cellOffset(cell);
+      TileIndex.signature(mSource, offset, mScanlineStride, cellSize,
+            cellSize, mPixelStride, mCatalog.hasAlpha() ? 1 : 0, query, 0);
+      return mCatalog.index().nearest(query, new TileIndex.Evaluator() {
+         @Override
+         public int mismatch(int tile, int bound) {
+            return mKernels.mismatch(mSource, offset, mScanlineStride,
+                  cellSize, cellSize, mCatalog.pixels(),
+                  mCatalog.offset(tile), bound);
+         }
+         @Override
+         public int penalty(int tile) {
+            return 0;
+         }
+         @Override
+         public int useCount(int tile) {
+            return 0;
+         }
+         @Override
+         public boolean allowed(int tile) {
+            return true;
+         }
+      });
+   }
+
+   private int scan(MismatchKernels kernels, int cell) {
+      int offset = cellOffset(cell);
+      byte pixels[] = mCatalog.pixels();
+      int best = -1, bestMismatch = Integer.MAX_VALUE;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         int mismatch = kernels.mismatch(mSource, offset, mScanlineStride,
+               cellSize, cellSize, pixels, mCatalog.offset(tile),
+               bestMismatch);
+         if(mismatch < bestMismatch) {
+            bestMismatch = mismatch;
+            best = tile;
+         }
+      }
+      return best;
+   }
+
+   private BufferedImage draw() {
+      BufferedImage mosaic = new BufferedImage(mCols*TILE_SIZE,
+            mRows*TILE_SIZE, mType);
+      Graphics2D g2 = mosaic.createGraphics();
+      for(int i = 0; i < mCols; i++) {
+         for(int j = 0; j < mRows; j++) {
+            g2.drawImage(mCatalog.scaled(mSelected[i][j]),
+                  i*TILE_SIZE, j*TILE_SIZE, TILE_SIZE, TILE_SIZE, null);
+         }
+      }
+      g2.dispose();
+      return mosaic;
+   }
+
+   /** Scales every tile and packs its cell raster and signature. */
+   @Benchmark
+   public TileCatalog prepareTiles() {
+      TileCatalog catalog = newCatalog();
+      catalog.prepareAll(mPool);
+      return catalog;
+   }
+
+   /** Builds the signature index over the prepared tiles. */
+   @Benchmark
+   public TileIndex buildIndex() {
+      return new TileIndex(mCatalog.signatures(), mCatalog.size());
+   }
+
+   /** Signs every full cell of the source. */
+   @Benchmark
+   public float[] signCells() {
+      float signatures[] = new float[TileIndex.SIGNATURE_LENGTH];
+      int firstColour = mCatalog.hasAlpha() ? 1 : 0;
+      for(int cell = 0; cell < mCols*mRows; cell++) {
+         TileIndex.signature(mSource, cellOffset(cell), mScanlineStride,
+               cellSize, cellSize, mPixelStride, firstColour, signatures, 0);
+      }
+      return signatures;
+   }
+
+   /** Matches the sample cells against every tile. */
+   @Benchmark
+   public int scanTiles() {
+      int sum = 0;
+      for(int cell: mSample) {
+         sum += scan(mKernels, cell);
+      }
+      return sum;
+   }
+
+   /** Matches the sample cells through the signature index. */
+   @Benchmark
+   public int searchIndex() {
+      int sum = 0;
+      for(int cell: mSample) {
+         sum += nearest(cell);
+      }
+      return sum;
+   }
+
+   /** Draws the tiles selected for every cell at tile size. */
+   @Benchmark
+   public BufferedImage drawMosaic() {
+      return draw();
+   }
+
+   /** Encodes the drawn mosaic as a PNG file. */
+   @Benchmark
+   public long encodePng() throws IOException {
+      try(PngStreamWriter writer = new PngStreamWriter(mOutput,
+            mMosaic.getWidth(), mMosaic.getHeight(), mCatalog.hasAlpha(),
+            6, 0)) {
+         writer.writeRows(mMosaic);
+         writer.finish();
+      }
+      return mOutput.length();
+   }
+}
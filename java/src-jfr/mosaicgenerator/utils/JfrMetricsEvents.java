@@ -0,0 +1,93 @@
+package mosaicgenerator.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Commits every stage as a JDK Flight Recorder event, and every run as a
+ * whole as one more, so a recording shows them next to the GC and
+ * allocation events. Events cost next to nothing when no recording runs.
+ */
+final class JfrMetricsEvents extends MetricsEvents {
+   @Name("mosaicgenerator.Stage")
+   @Label("Mosaic Stage")
+   @Category("Mosaic Generator")
+   @StackTrace(false)
+   static class StageEvent extends Event {
+      @Label("Job")
+      String job;
+      @Label("Stage")
+      String stage;
+      @Label("Allocated")
+      @DataAmount
+      long allocated;
+   }
+
+   @Name("mosaicgenerator.Job")
+   @Label("Mosaic Job")
+   @Category("Mosaic Generator")
+   @StackTrace(false)
+   static class JobEvent extends Event {
+      @Label("Job")
+      String job;
+      @Label("Pixels")
+      long pixels;
+      @Label("Tiles Prepared")
+      long tilesPrepared;
+      @Label("Comparisons")
+      long comparisons;
+      @Label("Comparisons Pruned")
+      long comparisonsPruned;
+      @Label("Allocated")
+      @DataAmount
+      long allocated;
+      @Label("Pixels per Second")
+      double pixelsPerSecond;
+   }
+
+   JfrMetricsEvents() {
+      // Fails here rather than on the first stage if jdk.jfr is missing.
+      new StageEvent();
+      new JobEvent();
+   }
+
+   @Override
+   Object beginStage() {
+      StageEvent event = new StageEvent();
+      event.begin();
+      return event;
+   }
+
+   @Override
+   void endStage(Object stageEvent, String job, String stage,
+         long allocated) {
+      StageEvent event = (StageEvent)stageEvent;
+      event.end();
+      if(event.shouldCommit()) {
+         event.job = job;
+         event.stage = stage;
+         event.allocated = allocated;
+         event.commit();
+      }
+   }
+
+   @Override
+   void job(String job, long pixels, long tilesPrepared, long comparisons,
+         long comparisonsPruned, long allocated, double pixelsPerSecond) {
+      JobEvent event = new JobEvent();
+      if(event.shouldCommit()) {
+         event.job = job;
+         event.pixels = pixels;
+         event.tilesPrepared = tilesPrepared;
+         event.comparisons = comparisons;
+         event.comparisonsPruned = comparisonsPruned;
+         event.allocated = allocated;
+         event.pixelsPerSecond = pixelsPerSecond;
+         event.commit();
+      }
+   }
+}
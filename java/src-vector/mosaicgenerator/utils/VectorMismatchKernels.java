@@ -0,0 +1,207 @@
+package mosaicgenerator.utils;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The mismatch kernels on the incubating Vector API. Each row is taken as
+ * a flat run of bytes, eight at a time: the bytes are widened to ints,
+ * their differences squared and added up lane by lane, and the lanes are
+ * split into their channels once at the end. The rows, the early exit and
+ * the channel sums are the same as those of the scalar kernels, so both
+ * give exactly the same mismatch.
+ *
+ * Eight bytes of a BGR row start at a different channel each time, so
+ * BGR sums are kept in three vectors, one for every 24 bytes. In ABGR
+ * rows every lane always holds the same channel and the alpha lanes are
+ * left out. The lane sums are carried from row to row in a small array
+ * rather than in vectors, which the JIT would otherwise box on every row.
+ *
+ * Built and loaded only where jdk.incubator.vector is there, see
+ * MismatchKernels.create.
+ */
+final class VectorMismatchKernels extends MismatchKernels {
+   private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+   private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+   private static final int LANES = 8;
+
+   // Channel of every lane sum (0 blue, 1 green, 2 red, -1 alpha), for
+   // the three vectors of a BGR row and the one of an ABGR row.
+   private static final int BGR_CHANNELS[] = channels(3, 3, 0);
+   private static final int ABGR_CHANNELS[] = channels(1, 4, 1);
+   private static final VectorMask<Integer> ABGR_COLOUR =
+         VectorMask.fromLong(INTS, 0xEE);
+
+   // Squares a lane sum takes before it is moved to the channel sums, so
+   // that not even the three sums of a BGR row together can overflow.
+   private static final int FLUSH_STEPS = 8192;
+
+   private final float mTotal;
+   private final boolean mAlpha;
+   private final int mPixelStride;
+
+   VectorMismatchKernels(int cellWidth, int cellHeight, boolean alpha) {
+      super(cellWidth, cellHeight, alpha);
+      mTotal = cellWidth*cellHeight;
+      mAlpha = alpha;
+      mPixelStride = alpha ? 4 : 3;
+   }
+
+   @Override
+   public boolean isVector() {
+      return true;
+   }
+
+   @Override
+   public int mismatch(byte cellRaster[], int cellOffset, int scanlineStride,
+         int width, int height, byte tileRaster[], int tileOffset,
+         int limit) {
+      int rowBytes = width*mPixelStride;
+      if(mAlpha) {
+         return alphaPixelDiff(cellRaster, cellOffset, scanlineStride,
+               rowBytes, height, tileRaster, tileOffset, limit);
+      } else {
+         return pixelDiff(cellRaster, cellOffset, scanlineStride,
+               rowBytes, height, tileRaster, tileOffset, limit);
+      }
+   }
+
+   private int pixelDiff(byte cellRaster[], int cellOffset,
+         int scanlineStride, int rowBytes, int rows, byte tileRaster[],
+         int tileOffset, int limit) {
+      long rgb[] = new long[3];
+      int lanes[] = new int[3*LANES];
+      long threshold = sumThreshold(limit, mTotal);
+      int flushRows = Math.max(1, FLUSH_STEPS/(rowBytes/(3*LANES) + 1));
+      int flushed = 0;
+      for(int first: ROW_ORDER) {
+         for(int row = first; row < rows; row += ROW_ORDER.length) {
+            int cell = cellOffset + row*scanlineStride;
+            int tile = tileOffset + row*rowBytes;
+            IntVector sum0 = IntVector.fromArray(INTS, lanes, 0);
+            IntVector sum1 = IntVector.fromArray(INTS, lanes, LANES);
+            IntVector sum2 = IntVector.fromArray(INTS, lanes, 2*LANES);
+            int x = 0;
+            for(; x + 3*LANES <= rowBytes; x += 3*LANES) {
+               sum0 = sum0.add(squares(cellRaster, cell + x,
+                     tileRaster, tile + x));
+               sum1 = sum1.add(squares(cellRaster, cell + x + LANES,
+                     tileRaster, tile + x + LANES));
+               sum2 = sum2.add(squares(cellRaster, cell + x + 2*LANES,
+                     tileRaster, tile + x + 2*LANES));
+            }
+            sum0.intoArray(lanes, 0);
+            sum1.intoArray(lanes, LANES);
+            sum2.intoArray(lanes, 2*LANES);
+            // At most two more vectors, which start at blue and at green.
+            for(int i = 0; x + LANES <= rowBytes; i += LANES, x += LANES) {
+               IntVector.fromArray(INTS, lanes, i)
+                     .add(squares(cellRaster, cell + x, tileRaster, tile + x))
+                     .intoArray(lanes, i);
+            }
+            long sum = IntVector.fromArray(INTS, lanes, 0)
+                  .add(IntVector.fromArray(INTS, lanes, LANES))
+                  .add(IntVector.fromArray(INTS, lanes, 2*LANES))
+                  .reduceLanesToLong(VectorOperators.ADD);
+
+            for(; x < rowBytes; x++) {
+               int d = ((int)cellRaster[cell+x] & 0xff) - ((int)tileRaster[tile+x] & 0xff);
+               rgb[x%3] += d*d;
+            }
+            if(rgb[0] + rgb[1] + rgb[2] + sum > threshold) {
+               return limit + 1;
+            }
+            if(++flushed == flushRows) {
+               flush(lanes, BGR_CHANNELS, rgb);
+               flushed = 0;
+            }
+         }
+      }
+      flush(lanes, BGR_CHANNELS, rgb);
+      return (int)Math.sqrt(rgb[2]/mTotal + rgb[1]/mTotal + rgb[0]/mTotal);
+   }
+
+   private int alphaPixelDiff(byte cellRaster[], int cellOffset,
+         int scanlineStride, int rowBytes, int rows, byte tileRaster[],
+         int tileOffset, int limit) {
+      long rgb[] = new long[3];
+      int lanes[] = new int[LANES];
+      long threshold = sumThreshold(limit, mTotal);
+      int flushRows = Math.max(1, FLUSH_STEPS/(rowBytes/LANES + 1));
+      int flushed = 0;
+      for(int first: ROW_ORDER) {
+         for(int row = first; row < rows; row += ROW_ORDER.length) {
+            int cell = cellOffset + row*scanlineStride;
+            int tile = tileOffset + row*rowBytes;
+            IntVector sum = IntVector.fromArray(INTS, lanes, 0);
+            int x = 0;
+            for(; x + LANES <= rowBytes; x += LANES) {
+               sum = sum.add(squares(cellRaster, cell + x,
+                     tileRaster, tile + x), ABGR_COLOUR);
+            }
+            sum.intoArray(lanes, 0);
+            long total = sum.reduceLanesToLong(VectorOperators.ADD);
+
+            for(; x < rowBytes; x++) {
+               if(x%4 != 0) {
+                  int d = ((int)cellRaster[cell+x] & 0xff) - ((int)tileRaster[tile+x] & 0xff);
+                  rgb[x%4 - 1] += d*d;
+               }
+            }
+            if(rgb[0] + rgb[1] + rgb[2] + total > threshold) {
+               return limit + 1;
+            }
+            if(++flushed == flushRows) {
+               flush(lanes, ABGR_CHANNELS, rgb);
+               flushed = 0;
+            }
+         }
+      }
+      flush(lanes, ABGR_CHANNELS, rgb);
+      return (int)Math.sqrt(rgb[2]/mTotal + rgb[1]/mTotal + rgb[0]/mTotal);
+   }
+
+   /** @return The squared differences of eight bytes, widened to ints. */
+   private static IntVector squares(byte cellRaster[], int cell,
+         byte tileRaster[], int tile) {
+      IntVector c = widen(ByteVector.fromArray(BYTES, cellRaster, cell));
+      IntVector t = widen(ByteVector.fromArray(BYTES, tileRaster, tile));
+      IntVector d = c.sub(t);
+      return d.mul(d);
+   }
+
+   private static IntVector widen(ByteVector bytes) {
+      return ((IntVector)bytes.convertShape(VectorOperators.B2I, INTS, 0))
+            .and(0xff);
+   }
+
+   /**
+    * Adds the lane sums to the sums of their channels and clears them.
+    */
+   private static void flush(int lanes[], int channels[], long rgb[]) {
+      for(int i = 0; i < lanes.length; i++) {
+         if(channels[i] >= 0) {
+            rgb[channels[i]] += lanes[i];
+         }
+         lanes[i] = 0;
+      }
+   }
+
+   /**
+    * @param vectors     Number of vectors the lane sums are kept in.
+    * @param pixelStride Bytes per pixel.
+    * @param blue        Position of blue in a pixel; the positions before
+    *                    it are alpha.
+    * @return The channel of every lane sum, -1 for alpha.
+    */
+   private static int[] channels(int vectors, int pixelStride, int blue) {
+      int channels[] = new int[vectors*LANES];
+      for(int i = 0; i < channels.length; i++) {
+         channels[i] = i%pixelStride - blue;
+      }
+      return channels;
+   }
+}
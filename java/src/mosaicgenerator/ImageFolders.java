@@ -23,15 +23,25 @@ import javax.swing.JSplitPane;
 
 import mosaicgenerator.components.ImageDirectory;
 import mosaicgenerator.components.ModifiedFlowLayout;
+import mosaicgenerator.utils.Settings;
+import mosaicgenerator.utils.TileLibrary;
 
 public class ImageFolders extends JSplitPane {
    private JPanel mImagePanel;
    private JPanel mDirectoryList;
    private LinkedList<ImageDirectory> mDirectoryButtons;
    private JLabel mImageCount;
+   private TileLibrary mLibrary;
+   private Settings mSettings;
    
    public ImageFolders() {
+      this(null, null);
+   }
+   
+   public ImageFolders(TileLibrary library, Settings settings) {
       super(JSplitPane.HORIZONTAL_SPLIT);
+      mLibrary = library;
+      mSettings = settings;
       mDirectoryButtons = new LinkedList<>();
       setLeftComponent(createFolderView());
       setRightComponent(createFolderLoader());
@@ -119,7 +129,8 @@ public class ImageFolders extends JSplitPane {
       File dirs[] = chooser.getSelectedFiles();
       for(File dir: dirs) {
          if(dir.exists() && dir.isDirectory() && dirIsNotUsed(dir)) {
-            ImageDirectory imgDir = new ImageDirectory(mImagePanel);
+            ImageDirectory imgDir = new ImageDirectory(mImagePanel, mLibrary, 
+                  mSettings);
             mDirectoryList.add(imgDir);
             mDirectoryButtons.add(imgDir);
             imgDir.loadImages(dir);
@@ -180,4 +191,15 @@ public class ImageFolders extends JSplitPane {
       }
       return images;
    }
+   
+   /**
+    * Collects the images of all directories together with the files they
+    * were loaded from, in the same order.
+    */
+   public void collectImages(LinkedList<BufferedImage> images, 
+         LinkedList<File> files) {
+      for(ImageDirectory imgDir: mDirectoryButtons) {
+         imgDir.collectImages(images, files);
+      }
+   }
 }
@@ -0,0 +1,287 @@
+package mosaicgenerator;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mosaicgenerator.utils.DirectoryLoader;
+import mosaicgenerator.utils.MosaicBatch;
+import mosaicgenerator.utils.Settings;
+import mosaicgenerator.utils.TileDecoder;
+import mosaicgenerator.utils.TileLibrary;
+
+/**
+ * Makes mosaics from the command line, without a display. The tiles are
+ * loaded once and the source images are then turned into mosaics as a
+ * MosaicBatch, which shares the prepared tiles between the jobs.
+ */
+public class MosaicCommand {
+   private static final String USAGE =
+           "Usage: MosaicCommand [options] source...\n"
+         + "\n"
+         + "Sources are image files. @file reads more sources from file, one\n"
+         + "per line.\n"
+         + "\n"
+         + "Options:\n"
+         + "  -t, --tiles DIR        Directory of tile images. Repeatable.\n"
+         + "  -o, --output PATH      Output file for a single source, or the\n"
+         + "                         directory outputs are written to.\n"
+         + "  -f, --format FORMAT    png, dzi or mosaic (a manifest).\n"
+         + "  -s, --set NAME=VALUE   Sets a field of Settings, for example\n"
+         + "                         cellWidth=10 or lazyTiles=true.\n"
+         + "      --no-library       Does not use the tile library.\n";
+
+   private Settings mSettings;
+   private List<File> mTileDirectories;
+   private List<File> mSources;
+   private File mOutput;
+   private String mFormat;
+   private boolean mUseLibrary;
+
+   private TileLibrary mLibrary;
+   private LinkedList<BufferedImage> mTiles;
+   private LinkedList<File> mTileFiles;
+
+   private MosaicCommand() {
+      mSettings = Settings.defaults();
+      mSettings.progressivePreview = false;
+      mTileDirectories = new ArrayList<>();
+      mSources = new ArrayList<>();
+      mFormat = "png";
+      mUseLibrary = true;
+   }
+
+   public static void main(String args[]) {
+      System.setProperty("java.awt.headless", "true");
+
+      MosaicCommand command = new MosaicCommand();
+      try {
+         command.parse(args);
+      } catch(IllegalArgumentException | IOException ex) {
+         System.err.println(ex.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      }
+      System.exit(command.run() ? 0 : 1);
+   }
+
+   /* ********************************************************************** */
+   /*                               ARGUMENTS                                */
+   /* ********************************************************************** */
+   private void parse(String args[]) throws IOException {
+      for(int i = 0; i < args.length; i++) {
+         String arg = args[i];
+         switch(arg) {
+         case "-t": case "--tiles":
+            mTileDirectories.add(new File(value(args, ++i, arg)));
+            break;
+         case "-o": case "--output":
+            mOutput = new File(value(args, ++i, arg));
+            break;
+         case "-f": case "--format":
+            mFormat = value(args, ++i, arg);
+            break;
+         case "-s": case "--set":
+            set(value(args, ++i, arg));
+            break;
+         case "--no-library":
+            mUseLibrary = false;
+            break;
+         default:
+            if(arg.startsWith("-")) {
+               throw new IllegalArgumentException("Unknown option " + arg);
+            } else if(arg.startsWith("@")) {
+               for(String line: Files.readAllLines(
+                     new File(arg.substring(1)).toPath(),
+                     StandardCharsets.UTF_8)) {
+                  if(!line.trim().isEmpty()) {
+                     mSources.add(new File(line.trim()));
+                  }
+               }
+            } else {
+               mSources.add(new File(arg));
+            }
+         }
+      }
+
+      if(mSources.isEmpty() || mTileDirectories.isEmpty()) {
+         throw new IllegalArgumentException(
+               "At least one source and one tile directory are needed.");
+      }
+      if(!Arrays.asList("png", "dzi", "mosaic").contains(mFormat)) {
+         throw new IllegalArgumentException("Unknown format " + mFormat);
+      }
+      if(mSources.size() > 1 && mOutput != null && !mOutput.isDirectory()) {
+         throw new IllegalArgumentException(
+               "The output must be a directory when there are several sources.");
+      }
+   }
+
+   private static String value(String args[], int i, String option) {
+      if(i >= args.length) {
+         throw new IllegalArgumentException(option + " needs a value.");
+      }
+      return args[i];
+   }
+
+   /**
+    * Sets a field of the settings from a NAME=VALUE pair.
+    */
+   private void set(String assignment) {
+      int equals = assignment.indexOf('=');
+      if(equals < 0) {
+         throw new IllegalArgumentException("Expected NAME=VALUE: " + assignment);
+      }
+      String name = assignment.substring(0, equals);
+      String value = assignment.substring(equals + 1);
+      try {
+         Field field = Settings.class.getField(name);
+         Class<?> type = field.getType();
+         if(type == int.class) {
+            field.setInt(mSettings, Integer.parseInt(value));
+         } else if(type == long.class) {
+            field.setLong(mSettings, Long.parseLong(value));
+         } else if(type == boolean.class) {
+            field.setBoolean(mSettings, Boolean.parseBoolean(value));
+         } else if(type == File.class) {
+            field.set(mSettings, value.isEmpty() ? null : new File(value));
+         } else {
+            field.set(mSettings, value);
+         }
+      } catch(NoSuchFieldException ex) {
+         throw new IllegalArgumentException("Unknown setting " + name);
+      } catch(NumberFormatException ex) {
+         throw new IllegalArgumentException("Bad value for " + name);
+      } catch(IllegalAccessException ex) {
+         throw new IllegalArgumentException("Setting " + name + " cannot be set.");
+      }
+   }
+
+   /* ********************************************************************** */
+   /*                                 JOBS                                   */
+   /* ********************************************************************** */
+   private boolean run() {
+      if(mUseLibrary && mSettings.libraryFile != null) {
+         try {
+            mLibrary = TileLibrary.open(mSettings.libraryFile);
+         } catch(IOException ex) {
+            System.err.println("Tile library could not be opened.");
+         }
+      }
+
+      boolean succeeded = true;
+      try {
+         loadTiles();
+         if(mTiles.isEmpty()) {
+            System.err.println("No tiles were found.");
+            return false;
+         }
+         MosaicBatch batch = new MosaicBatch(mTiles, mTileFiles, mLibrary,
+               mSettings);
+         for(File source: mSources) {
+            batch.add(source, outputFile(source));
+         }
+         succeeded = batch.run((job, finished, total, imagesPerMinute) -> {
+            String result = job.getError() == null ?
+                  "wrote " + job.getOutput() : "failed: " + job.getError();
+            System.err.printf("[%d/%d] %s %s (%.1f images/min)%n", 
+                  finished, total, job.getSource().getName(), result,
+                  imagesPerMinute);
+         });
+      } finally {
+         closeLibrary();
+      }
+      return succeeded;
+   }
+
+   /**
+    * Decodes the tile images on a pool of threads, in directory and file
+    * name order. Only a bounded number of files is in flight at a time, as
+    * in DirectoryLoader. With lazy tiles only previews are kept.
+    */
+   private void loadTiles() {
+      mTiles = new LinkedList<>();
+      mTileFiles = new LinkedList<>();
+      List<File> files = new ArrayList<>();
+      for(File directory: mTileDirectories) {
+         File found[] = directory.listFiles(DirectoryLoader.imageFileFilter());
+         if(found == null) {
+            System.err.println(directory + " is not a directory.");
+            continue;
+         }
+         Arrays.sort(found);
+         files.addAll(Arrays.asList(found));
+      }
+
+      int threads = mSettings.decodeThreads > 0 ?
+            mSettings.decodeThreads : Runtime.getRuntime().availableProcessors();
+      int queueSize = mSettings.decodeQueueSize > 0 ?
+            Math.max(threads, mSettings.decodeQueueSize) : 2*threads;
+      TileDecoder decoder = new TileDecoder(mLibrary,
+            Math.max(mSettings.tileWidth, mSettings.tileHeight));
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      ArrayDeque<Future<BufferedImage>> inFlight = new ArrayDeque<>();
+      Iterator<File> it = files.iterator();
+      try {
+         for(File file: files) {
+            while(inFlight.size() < queueSize && it.hasNext()) {
+               File next = it.next();
+               inFlight.add(pool.submit(() -> mSettings.lazyTiles ? 
+                     decoder.preview(next) : decoder.thumbnail(next)));
+            }
+            try {
+               mTiles.add(inFlight.poll().get());
+               mTileFiles.add(file);
+            } catch(ExecutionException ex) {
+               System.err.println("Tile " + file + " failed to load.");
+            }
+         }
+      } catch(InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } finally {
+         pool.shutdownNow();
+      }
+      System.err.println("Loaded " + mTiles.size() + " tiles.");
+   }
+
+   /**
+    * @return The output given on the command line, or a file named after
+    *         the source in the output directory (or next to the source).
+    */
+   private File outputFile(File source) {
+      if(mOutput != null && !mOutput.isDirectory()) {
+         return mOutput;
+      }
+      String name = source.getName();
+      int dot = name.lastIndexOf('.');
+      name = (dot > 0 ? name.substring(0, dot) : name) + "-mosaic." + mFormat;
+      File directory = mOutput != null ?
+            mOutput : source.getAbsoluteFile().getParentFile();
+      return new File(directory, name);
+   }
+
+   private void closeLibrary() {
+      if(mLibrary == null) {
+         return;
+      }
+      try {
+         mLibrary.save();
+         mLibrary.close();
+      } catch(IOException ex) {
+         System.err.println("Tile library could not be saved.");
+      }
+   }
+}
@@ -2,18 +2,25 @@ package mosaicgenerator;
 
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
 import javax.swing.JTabbedPane;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
+import mosaicgenerator.utils.CandidateCache;
 import mosaicgenerator.utils.MosaicMaker;
 import mosaicgenerator.utils.MosaicMakerCallback;
 import mosaicgenerator.utils.Settings;
+import mosaicgenerator.utils.TileCatalog;
+import mosaicgenerator.utils.TileLibrary;
 
 public class MosaicGenerator extends JFrame {
    private JTabbedPane mTabbedPane;   
@@ -23,25 +30,32 @@ public class MosaicGenerator extends JFrame {
    
    private Settings mSettings;
    private MosaicMaker mMosaicMaker;
+   private TileCatalog mTileCatalog;
+   private CandidateCache mCandidateCache;
+   private TileLibrary mTileLibrary;
    
    public MosaicGenerator() {
       super("Mosaic Generator");
       setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
       
-      mSettings = makeDefaultSettings();
+      mSettings = Settings.defaults();
+      mTileLibrary = openTileLibrary(mSettings.libraryFile);
       createWidgets();
       
       setSize(800, 600);
       setVisible(true);
    }
    
-   private Settings makeDefaultSettings() {
-      Settings settings = new Settings();
-      settings.cellWidth = settings.cellHeight = 15;
-      settings.tileWidth = settings.tileHeight = 150;
-      settings.reuseTiles = false;
-      settings.reusePenalty = 15;
-      return settings;
+   private static TileLibrary openTileLibrary(File file) {
+      if(file == null) {
+         return null;
+      }
+      try {
+         return TileLibrary.open(file);
+      } catch(IOException ex) {
+         System.out.println("Tile library could not be opened.");
+         return null;
+      }
    }
    
    private void createWidgets() {
@@ -58,26 +72,26 @@ public class MosaicGenerator extends JFrame {
    }
    
    private void addFolderViewer(JTabbedPane parent) {
-      mFoldersPanel = new ImageFolders();
+      mFoldersPanel = new ImageFolders(mTileLibrary, mSettings);
       parent.addTab("2. Source Tiles", mFoldersPanel);
    }
    
    private void addResultsPage(JTabbedPane parent) {
-      mResultsPage = new ResultsPage(createMosaicMakerCallback());
+      mResultsPage = new ResultsPage(createMosaicMakerCallback(), mSettings);
       parent.addTab("3. Mosaic", mResultsPage);
    }
    
    private MosaicMakerCallback createMosaicMakerCallback() {
       return new MosaicMakerCallback() {
          @Override
-         public void makeMosaic(JProgressBar listener, PropertyChangeListener stateListener) {
-            if(isPrepared()) {
-               BufferedImage startImage = mImagePanel.image();
-               LinkedList<BufferedImage> images = mFoldersPanel.images();
-               mMosaicMaker = new MosaicMaker(listener, startImage, images, mSettings);
-               mMosaicMaker.addPropertyChangeListener(stateListener);
-               mMosaicMaker.execute();
-            }
+         public boolean makeMosaic(JProgressBar listener, PropertyChangeListener stateListener) {
+            mCandidateCache = null;
+            return startMosaic(listener, stateListener, false);
+         }
+         
+         @Override
+         public boolean reselectMosaic(JProgressBar listener, PropertyChangeListener stateListener) {
+            return startMosaic(listener, stateListener, true);
          }
          
          @Override
@@ -88,6 +102,86 @@ public class MosaicGenerator extends JFrame {
       };
    }
    
+   /**
+    * Starts a run. Only re-selections keep the best candidates of every
+    * cell, for the re-selections after them; filling the cache would only
+    * slow down a run that is not followed by one.
+    */
+   private boolean startMosaic(JProgressBar listener, 
+         PropertyChangeListener stateListener, boolean reselect) {
+      if(isPrepared()) {
+         BufferedImage startImage = mImagePanel.image();
+         LinkedList<BufferedImage> images = new LinkedList<>();
+         LinkedList<File> files = new LinkedList<>();
+         mFoldersPanel.collectImages(images, files);
+         File output = null;
+         if(isTooLarge(startImage)) {
+            output = chooseStreamingOutput();
+            if(output == null) {
+               return false;
+            }
+         }
+         
+         mMosaicMaker = new MosaicMaker(listener, startImage, images, 
+               files, mTileLibrary, mSettings, mTileCatalog);
+         mTileCatalog = mMosaicMaker.getCatalog();
+         if(reselect) {
+            mMosaicMaker.cacheCandidates(mCandidateCache);
+            mCandidateCache = mMosaicMaker.getCandidateCache();
+         }
+         if(output != null && output.getName().endsWith(".dzi")) {
+            mMosaicMaker.exportPyramidTo(output);
+         } else if(output != null) {
+            mMosaicMaker.streamTo(output);
+         }
+         mMosaicMaker.addPropertyChangeListener(stateListener);
+         mMosaicMaker.execute();
+         return true;
+      }
+      return false;
+   }
+   
+   private boolean isTooLarge(BufferedImage image) {
+      long size[] = MosaicMaker.mosaicSize(image, mSettings);
+      return size[0]*size[1] > mSettings.streamingPixels;
+   }
+   
+   /**
+    * Asks where a mosaic too large to be kept in memory should be written,
+    * either as a single PNG file or as a deep-zoom pyramid.
+    * 
+    * @return The selected .png or .dzi file, or null if the user backed out.
+    */
+   private File chooseStreamingOutput() {
+      String options[] = {"PNG File", "Deep Zoom", "Cancel"};
+      int answer = JOptionPane.showOptionDialog(this,
+            "The mosaic is too large to be kept in memory.\n"
+            + "It will be written straight to a PNG file, or to a deep zoom\n"
+            + "pyramid of small tiles, and only a preview will be shown.",
+            "Large Mosaic",
+            JOptionPane.DEFAULT_OPTION,
+            JOptionPane.INFORMATION_MESSAGE,
+            null, options, options[0]);
+      if(answer != 0 && answer != 1) {
+         return null;
+      }
+      
+      String extension = answer == 0 ? "png" : "dzi";
+      JFileChooser chooser = new JFileChooser();
+      chooser.setFileFilter(answer == 0 ?
+            new FileNameExtensionFilter("Portable Network Graphic", "png") :
+            new FileNameExtensionFilter("Deep Zoom Image", "dzi"));
+      if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+         return null;
+      }
+      File selectedFile = chooser.getSelectedFile();
+      if(!selectedFile.getName().endsWith("." + extension)) {
+         selectedFile = new File(selectedFile.getParent(), 
+               selectedFile.getName() + "." + extension);
+      }
+      return selectedFile;
+   }
+   
    private boolean isPrepared() {
       if(!mImagePanel.hasImage()) {
          JOptionPane.showMessageDialog(this,
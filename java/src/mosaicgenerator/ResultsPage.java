@@ -7,20 +7,27 @@ import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-import mosaicgenerator.components.ImageButton;
+import mosaicgenerator.components.MosaicViewer;
 import mosaicgenerator.utils.ImageSaver;
 import mosaicgenerator.utils.MosaicMaker;
 import mosaicgenerator.utils.MosaicMakerCallback;
+import mosaicgenerator.utils.MosaicManifest;
+import mosaicgenerator.utils.Settings;
 
 public class ResultsPage extends JPanel {
    private static enum State {
@@ -29,29 +36,49 @@ public class ResultsPage extends JPanel {
       STANDBY
    }
    
-   private ImageButton mResultButton;
+   private MosaicViewer mResultViewer;
    private JScrollPane mScrollPane;
+   private JLabel mPreviewLabel;
    
    private JPanel mButtonPanel;
    
    private JProgressBar mProgressBar;
    private JButton mSaveButton;
+   private JButton mReselectButton;
    private JButton mMakeMosaicButton;
    
    private State mButtonState;
    
    private ImageSaver mImageSaver;
+   private MosaicManifest mManifest;
+   private File mWrittenTo;
+   private boolean mShowingPreview;
    
    private MosaicMakerCallback mMakerCallback;
+   private Settings mSettings;
    
-   public ResultsPage(MosaicMakerCallback makerCallback) {
+   public ResultsPage(MosaicMakerCallback makerCallback, Settings settings) {
       mMakerCallback = makerCallback;
+      mSettings = settings;
       mButtonState = State.STANDBY;
       createWidgets();
    }
    
+   /**
+    * Shows a frame of a mosaic that is still being made. The first frame
+    * is fitted to the view, later ones keep the view as it is.
+    */
+   private void showPreview(BufferedImage frame) {
+      if(mShowingPreview) {
+         mResultViewer.replaceImage(frame);
+      } else {
+         mShowingPreview = true;
+         publishResult(frame);
+      }
+   }
+   
    public void publishResult(BufferedImage result) {
-      mResultButton.setImage(result);
+      mResultViewer.setImage(result);
       mScrollPane.revalidate();
       repaint();
    }
@@ -66,8 +93,14 @@ public class ResultsPage extends JPanel {
    }
    
    private void createResultView() {
-      mResultButton = new ImageButton();
-      mScrollPane = new JScrollPane(mResultButton);
+      mPreviewLabel = new JLabel();
+      mPreviewLabel.setVisible(false);
+      add(mPreviewLabel, BorderLayout.NORTH);
+      
+      mResultViewer = new MosaicViewer();
+      mScrollPane = new JScrollPane(mResultViewer);
+      mScrollPane.getHorizontalScrollBar().setUnitIncrement(16);
+      mScrollPane.getVerticalScrollBar().setUnitIncrement(16);
       add(mScrollPane, BorderLayout.CENTER);
    }
    
@@ -75,10 +108,41 @@ public class ResultsPage extends JPanel {
       mButtonPanel = new JPanel();
       mButtonPanel.setLayout(new BoxLayout(mButtonPanel, BoxLayout.X_AXIS));
       addProgressBar(mButtonPanel);
+      addReuseControls(mButtonPanel);
       addSaveButton(mButtonPanel);
+      addReselectButton(mButtonPanel);
       addGenerateButton(mButtonPanel);
       add(mButtonPanel, BorderLayout.SOUTH);
    }
+   
+   /**
+    * Controls for the settings a re-selection can change without comparing
+    * the cells with all tiles again.
+    */
+   private void addReuseControls(JPanel savePanel) {
+      JCheckBox reuse = new JCheckBox("Reuse Tiles", mSettings.reuseTiles);
+      reuse.addActionListener((e) -> mSettings.reuseTiles = reuse.isSelected());
+      savePanel.add(reuse);
+      
+      JSpinner penalty = createSpinner(mSettings.reusePenalty, 1000);
+      penalty.addChangeListener((e) -> 
+            mSettings.reusePenalty = (Integer)penalty.getValue());
+      savePanel.add(new JLabel(" Penalty "));
+      savePanel.add(penalty);
+      
+      JSpinner distance = createSpinner(mSettings.repeatDistance, 100);
+      distance.addChangeListener((e) -> 
+            mSettings.repeatDistance = (Integer)distance.getValue());
+      savePanel.add(new JLabel(" Repeat Distance "));
+      savePanel.add(distance);
+   }
+   
+   private static JSpinner createSpinner(int value, int maximum) {
+      JSpinner spinner = new JSpinner(
+            new SpinnerNumberModel(value, 0, maximum, 1));
+      spinner.setMaximumSize(spinner.getPreferredSize());
+      return spinner;
+   }
 
    private void addProgressBar(JPanel savePanel) {
       mProgressBar = new JProgressBar();
@@ -93,6 +157,20 @@ public class ResultsPage extends JPanel {
       savePanel.add(mSaveButton);
    }
    
+   private void addReselectButton(JPanel savePanel) {
+      mReselectButton = new JButton("Reselect");
+      mReselectButton.setToolTipText(
+            "Selects the tiles again with the reuse settings.");
+      mReselectButton.setEnabled(false);
+      mReselectButton.addActionListener((e) -> {
+         if(mMakerCallback.reselectMosaic(mProgressBar, 
+               createGeneratorListener())) {
+            setButtonState(State.MOSAIC);
+         }
+      });
+      savePanel.add(mReselectButton);
+   }
+   
    private void addGenerateButton(JPanel savePanel) {
       mMakeMosaicButton = new JButton("Make Mosaic");
       mMakeMosaicButton.addActionListener(createGenerateListener());
@@ -111,20 +189,71 @@ public class ResultsPage extends JPanel {
             if(isSavingFile()) {
                mImageSaver.cancel(true);
                setButtonState(State.STANDBY);
+            } else if(mWrittenTo != null) {
+               // Only a preview is shown, the mosaic is already written.
+               JFileChooser chooser = new JFileChooser();
+               chooser.setFileFilter(new FileNameExtensionFilter(
+                     "Mosaic Manifest", MANIFEST_EXTENSION));
+               if(chooser.showSaveDialog(me) == JFileChooser.APPROVE_OPTION) {
+                  saveManifest(chooser.getSelectedFile());
+               }
             } else {
-               if(mResultButton != null) {
+               if(mResultViewer.getImage() != null) {
                   JFileChooser chooser = new JFileChooser();
                   FileNameExtensionFilter nameFilter = 
                         new FileNameExtensionFilter("Portable Network Graphic", "png");
+                  if(mManifest != null) {
+                     chooser.addChoosableFileFilter(new FileNameExtensionFilter(
+                           "Mosaic Manifest", MANIFEST_EXTENSION));
+                  }
                   chooser.setFileFilter(nameFilter);
                   int result = chooser.showSaveDialog(me);
-                  saveImage(result, chooser);
+                  if(isManifestChosen(result, chooser)) {
+                     saveManifest(chooser.getSelectedFile());
+                  } else {
+                     saveImage(result, chooser);
+                  }
                }
             }
          }
       };
    }
    
+   private static final String MANIFEST_EXTENSION = "mosaic";
+   
+   private boolean isManifestChosen(int result, JFileChooser chooser) {
+      if(result != JFileChooser.APPROVE_OPTION || mManifest == null) {
+         return false;
+      }
+      if(chooser.getSelectedFile().getName().endsWith(
+            "." + MANIFEST_EXTENSION)) {
+         return true;
+      }
+      return chooser.getFileFilter() instanceof FileNameExtensionFilter
+            && ((FileNameExtensionFilter)chooser.getFileFilter())
+                  .getExtensions()[0].equals(MANIFEST_EXTENSION);
+   }
+   
+   /**
+    * Writes which tile went into which cell, so that the mosaic can be 
+    * rendered again at another size without matching the tiles again.
+    */
+   private void saveManifest(File selectedFile) {
+      if(!selectedFile.getName().endsWith("." + MANIFEST_EXTENSION)) {
+         selectedFile = new File(selectedFile.getParent(), 
+               selectedFile.getName() + "." + MANIFEST_EXTENSION);
+      }
+      try {
+         mManifest.write(selectedFile);
+      } catch(IOException ex) {
+         JOptionPane.showMessageDialog(
+               this,
+               "The manifest could not be saved.\n" + ex.getMessage(),
+               "Error",
+               JOptionPane.ERROR_MESSAGE);
+      }
+   }
+   
    private boolean isSavingFile() {
       if(mImageSaver == null)
          return false;
@@ -150,8 +279,10 @@ public class ResultsPage extends JPanel {
       }
       
       mImageSaver = new ImageSaver(mProgressBar, 
-                                   mResultButton.getImage(), 
-                                   selectedFile);
+                                   mResultViewer.getImage(), 
+                                   selectedFile,
+                                   mSettings.compressionLevel,
+                                   mSettings.compressionThreads);
       mImageSaver.addPropertyChangeListener(
                      getSaveStateListener(mSaveButton));
       mImageSaver.execute();
@@ -184,8 +315,10 @@ public class ResultsPage extends JPanel {
                mMakerCallback.stopMosaic();
                setButtonState(State.STANDBY);
             } else {
-               mMakerCallback.makeMosaic(mProgressBar, createGeneratorListener());
-               setButtonState(State.MOSAIC);
+               if(mMakerCallback.makeMosaic(mProgressBar, 
+                     createGeneratorListener())) {
+                  setButtonState(State.MOSAIC);
+               }
             }
          }
       };
@@ -196,7 +329,10 @@ public class ResultsPage extends JPanel {
          @Override
          public void propertyChange(PropertyChangeEvent e) {
             String property = e.getPropertyName();
-            if(!"state".equals(property)) {
+            if("preview".equals(property)) {
+               showPreview((BufferedImage)e.getNewValue());
+               return;
+            } else if(!"state".equals(property)) {
                return;
             }
             
@@ -206,12 +342,20 @@ public class ResultsPage extends JPanel {
             }
             
             MosaicMaker src = (MosaicMaker)e.getSource();
+            boolean previewShown = mShowingPreview;
+            mShowingPreview = false;
             if(src.isCancelled()) {
                return;
             } else {
                try {
                   BufferedImage result = src.get();
-                  publishResult(result);
+                  mManifest = src.getManifest();
+                  showWrittenTo(src.getOutputFile());
+                  if(previewShown) {
+                     mResultViewer.replaceImage(result);
+                  } else {
+                     publishResult(result);
+                  }
                } catch(Exception error) {
                   JOptionPane.showMessageDialog(
                         null,
@@ -229,10 +373,27 @@ public class ResultsPage extends JPanel {
       };
    }
    
+   /**
+    * Labels the result as a preview when the mosaic itself was written to
+    * a file rather than kept in memory.
+    * 
+    * @param output File the mosaic was written to, or null.
+    */
+   private void showWrittenTo(File output) {
+      mWrittenTo = output;
+      if(output != null) {
+         mPreviewLabel.setText(" Preview. The mosaic was written to " 
+               + output.getPath());
+      }
+      mPreviewLabel.setVisible(output != null);
+      revalidate();
+   }
+   
    private void setButtonState(State state) {
       switch(state) {
       case SAVING:
          mSaveButton.setText("Stop Saving");
+         mReselectButton.setVisible(false);
          mMakeMosaicButton.setEnabled(false);
          mMakeMosaicButton.setVisible(false);
          break;
@@ -240,11 +401,16 @@ public class ResultsPage extends JPanel {
          mMakeMosaicButton.setText("Stop");
          mSaveButton.setEnabled(false);
          mSaveButton.setVisible(false);
+         mReselectButton.setVisible(false);
          break;
       case STANDBY:
-         mSaveButton.setEnabled(true);
+         mSaveButton.setEnabled(mWrittenTo == null || mManifest != null);
          mSaveButton.setVisible(true);
-         mSaveButton.setText("Save Image");
+         mSaveButton.setText(mWrittenTo != null ? 
+               "Save Manifest" : "Save Image");
+         
+         mReselectButton.setEnabled(mResultViewer.getImage() != null);
+         mReselectButton.setVisible(true);
          
          mMakeMosaicButton.setEnabled(true);
          mMakeMosaicButton.setVisible(true);
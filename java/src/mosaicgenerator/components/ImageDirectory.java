@@ -8,82 +8,221 @@ import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import mosaicgenerator.utils.DirectoryLoader;
+import mosaicgenerator.utils.DirectoryManifest;
+import mosaicgenerator.utils.DirectoryWatcher;
+import mosaicgenerator.utils.ProgressTracker;
 import mosaicgenerator.utils.ProgressiveBilinear;
+import mosaicgenerator.utils.Settings;
+import mosaicgenerator.utils.TileDecoder;
+import mosaicgenerator.utils.TileLibrary;
 
 public class ImageDirectory extends JButton implements MouseListener {
+   
    private final Color DISABLED = Color.CYAN;
    private final Color DISABLED_HOVER = new Color(0, 160, 160);
    private final Color ENABLED = Color.GREEN;
    private final Color ENABLED_HOVER = new Color(0, 160, 0);
    
    private DirectoryLoader mBackgroundLoader;    
+   private Timer mProgressTicker;
    private boolean mLoading;
+   private boolean mRefreshPending;
+   private DirectoryWatcher mWatcher;
    
    private boolean mSelected;
    private boolean mHover;
    
    private File mDirectory;
    private HashMap<String, BufferedImage> mImages;
+   private DirectoryManifest mManifest;
+   private TileLibrary mLibrary;
+   private Settings mSettings;
    
+   // The maps are shared with the loader thread and guarded by this; the
+   // image panel is only changed on the event dispatch thread.
    private JPanel mImagePanel;
-   private LinkedList<ImageThumbnail> mThumbnails; 
+   private HashMap<String, ImageThumbnail> mThumbnails;
+   private boolean mRemoved; 
    
    public ImageDirectory(JPanel imagePanel) {
+      this(imagePanel, null, null);
+   }
+   
+   /**
+    * @param library  Library the loaded images are cached in, may be null.
+    * @param settings Settings used for loading, may be null.
+    */
+   public ImageDirectory(JPanel imagePanel, TileLibrary library, 
+         Settings settings) {
       mDirectory = null;
+      mLibrary = library;
+      mSettings = settings;
       mLoading = true;
       mSelected = false;
       mHover = false;
       mImages = new HashMap<>();
+      mManifest = new DirectoryManifest();
       mImagePanel = imagePanel;
-      mThumbnails = new LinkedList<>();
+      mThumbnails = new HashMap<>();
+      mProgressTicker = new Timer(ProgressTracker.TICK_MILLIS, 
+            (e) -> showProgress());
       addMouseListener(this);
    }
    
+   /**
+    * Adds an image, replacing the one loaded earlier under the same name.
+    * With lazy tiles only a small preview of the image is kept; the tiles
+    * are made from the files again when they are needed. Can be called
+    * from any thread.
+    */
    public void addImage(String name, BufferedImage image) {
-      image = ProgressiveBilinear.progressiveScale(image, 150, 150);
-      mImages.put(name, image);
+      int size = lazyTiles() ? 
+            TileDecoder.PREVIEW_SIZE : TileDecoder.THUMBNAIL_SIZE;
+      image = ProgressiveBilinear.progressiveScale(image, size, size);
       ImageThumbnail thumb = new ImageThumbnail(image);
-      mThumbnails.add(thumb);
-      mImagePanel.add(thumb);
-      mImagePanel.revalidate();
-      mImagePanel.repaint();
+      if(lazyTiles()) {
+         thumb.setThumbnailSize(TileDecoder.PREVIEW_SIZE);
+      }
+      ImageThumbnail old;
+      synchronized(this) {
+         if(mRemoved) {
+            return;
+         }
+         mImages.put(name, image);
+         old = mThumbnails.put(name, thumb);
+      }
+      SwingUtilities.invokeLater(() -> {
+         if(old != null) {
+            mImagePanel.remove(old);
+         }
+         if(isShown(name, thumb)) {
+            mImagePanel.add(thumb);
+         }
+         mImagePanel.revalidate();
+         mImagePanel.repaint();
+      });
+   }
+   
+   /**
+    * Removes an image. Can be called from any thread.
+    */
+   public void removeImage(String name) {
+      ImageThumbnail thumb;
+      synchronized(this) {
+         mImages.remove(name);
+         thumb = mThumbnails.remove(name);
+      }
+      if(thumb != null) {
+         SwingUtilities.invokeLater(() -> {
+            mImagePanel.remove(thumb);
+            mImagePanel.revalidate();
+            mImagePanel.repaint();
+         });
+      }
+   }
+   
+   /**
+    * @return Whether the thumbnail is still the one of the image, so that
+    *         an addition that was overtaken is not shown.
+    */
+   private synchronized boolean isShown(String name, ImageThumbnail thumb) {
+      return !mRemoved && mThumbnails.get(name) == thumb;
    }
    
+   /**
+    * Loads the images of the directory and keeps watching it. Files that
+    * are added, changed or deleted later on are picked up on their own.
+    */
    public void loadImages(File directory) {
       mDirectory = directory;
+      startLoader();
+      
+      mWatcher = new DirectoryWatcher(directory, 
+            () -> SwingUtilities.invokeLater(() -> refresh()));
+      try {
+         mWatcher.start();
+      } catch(IOException ex) {
+         System.out.println("Directory can't be watched for changes.");
+         mWatcher = null;
+      }
+   }
+   
+   private void startLoader() {
       mBackgroundLoader = new DirectoryLoader(this);
       mBackgroundLoader.addPropertyChangeListener(
             (e) -> trackProgress(e));
       mBackgroundLoader.execute();
    }
    
+   private void refresh() {
+      if(mWatcher == null) {
+         return;
+      }
+      if(mBackgroundLoader != null) {
+         mRefreshPending = true;
+      } else {
+         startLoader();
+      }
+   }
+   
    public void removeImages() {
-      mThumbnails.stream().forEach((item) -> {
-         mImagePanel.remove(item);
-      });
+      if(mWatcher != null) {
+         mWatcher.stop();
+         mWatcher = null;
+      }
+      if(mBackgroundLoader != null) {
+         mBackgroundLoader.cancel(true);
+      }
+      // A loader that is still running adds nothing after this.
+      List<ImageThumbnail> thumbs;
+      synchronized(this) {
+         mRemoved = true;
+         thumbs = new ArrayList<>(mThumbnails.values());
+      }
+      thumbs.forEach((item) -> mImagePanel.remove(item));
    }
    
-   public Collection<BufferedImage> images() {
-      return mImages.values();
+   public synchronized Collection<BufferedImage> images() {
+      return new LinkedList<>(mImages.values());
+   }
+   
+   /**
+    * Adds the images and the files they were loaded from to the two
+    * collections, in the same order.
+    */
+   public synchronized void collectImages(Collection<BufferedImage> images,
+         Collection<File> files) {
+      mImages.forEach((name, image) -> {
+         images.add(image);
+         files.add(new File(mDirectory, name));
+      });
    }
    
    private void trackProgress(PropertyChangeEvent e) {
-      String property = e.getPropertyName();
-      if(null != property) switch (property) {
-         case "state":
-            changeState(e.getNewValue().toString());
-            break;
-         case "progress":
-            repaint();
-            break;
+      if("state".equals(e.getPropertyName())) {
+         changeState(e.getNewValue().toString());
+      }
+   }
+   
+   private void showProgress() {
+      if(mBackgroundLoader != null) {
+         ProgressTracker progress = mBackgroundLoader.getProgressTracker();
+         progress.sample();
+         setText(progress.describe());
+         repaint();
       }
    }
    
@@ -91,10 +230,16 @@ public class ImageDirectory extends JButton implements MouseListener {
       if(null != state) switch (state) {
          case "STARTED":
             mLoading = true;
+            mProgressTicker.start();
             break;
          case "DONE":
+            mProgressTicker.stop();
             mLoading = false;
             mBackgroundLoader = null;
+            if(mRefreshPending && mWatcher != null) {
+               mRefreshPending = false;
+               startLoader();
+            }
             break;
       }
       repaint();
@@ -104,6 +249,22 @@ public class ImageDirectory extends JButton implements MouseListener {
       return mDirectory;
    }
    
+   public DirectoryManifest getManifest() {
+      return mManifest;
+   }
+   
+   public TileLibrary getLibrary() {
+      return mLibrary;
+   }
+   
+   public Settings getSettings() {
+      return mSettings;
+   }
+   
+   private boolean lazyTiles() {
+      return mSettings != null && mSettings.lazyTiles;
+   }
+   
    @Override
    public Dimension getMinimumSize() {
       return new Dimension(100, 50);
@@ -133,7 +294,8 @@ public class ImageDirectory extends JButton implements MouseListener {
       drawBackground(g, width, height);
       
       if(mLoading) {
-         float progress = mBackgroundLoader.getProgress()/100.0f;
+         float progress = (float)mBackgroundLoader.getProgressTracker()
+               .fraction();
          drawRect(g, (int)(width*progress), height, Color.GREEN);
       }
    }
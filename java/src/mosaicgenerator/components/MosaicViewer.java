@@ -0,0 +1,253 @@
+package mosaicgenerator.components;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Shows a possibly huge image inside a scroll pane. Only the visible part
+ * is painted, and when zoomed out it is taken from a mip pyramid of the
+ * image (every level half the size of the one before), so painting costs
+ * about the same at any zoom. The pyramid is built in the background;
+ * until a level is ready the next finer one is used.
+ *
+ * Ctrl + mouse wheel zooms around the mouse pointer.
+ */
+public class MosaicViewer extends JComponent {
+   private static final int SMALLEST_LEVEL = 256;
+   private static final double ZOOM_STEP = 1.25;
+   private static final double MAX_ZOOM = 4.0;
+
+   private BufferedImage mImage;
+   private List<BufferedImage> mLevels;
+   private PyramidBuilder mBuilder;
+   private double mZoom;
+
+   public MosaicViewer() {
+      mLevels = new ArrayList<>();
+      mZoom = 1.0;
+      setOpaque(true);
+      addMouseWheelListener(this::mouseWheelMoved);
+   }
+
+   /**
+    * Shows a new image, zoomed out to fit the visible area if it is larger
+    * than that.
+    */
+   public void setImage(BufferedImage image) {
+      if(mBuilder != null) {
+         mBuilder.cancel(true);
+         mBuilder = null;
+      }
+      mImage = image;
+      mLevels = new ArrayList<>();
+      if(image != null) {
+         mLevels.add(image);
+         mBuilder = new PyramidBuilder(image);
+         mBuilder.execute();
+      }
+      setZoom(fitZoom());
+   }
+
+   /**
+    * Swaps in another image of the same picture, for example a finer 
+    * rendering of a preview. The zoom follows the change in size, so the
+    * view stays where it is.
+    */
+   public void replaceImage(BufferedImage image) {
+      if(mImage == null || image == null) {
+         setImage(image);
+         return;
+      }
+      double zoom = mZoom*mImage.getWidth()/image.getWidth();
+      setImage(image);
+      setZoom(zoom);
+   }
+   
+   public BufferedImage getImage() {
+      return mImage;
+   }
+
+   public double getZoom() {
+      return mZoom;
+   }
+
+   public void setZoom(double zoom) {
+      mZoom = Math.max(minZoom(), Math.min(MAX_ZOOM, zoom));
+      revalidate();
+      repaint();
+   }
+
+   private double fitZoom() {
+      if(mImage == null || !(getParent() instanceof JViewport)) {
+         return 1.0;
+      }
+      Dimension visible = ((JViewport)getParent()).getExtentSize();
+      if(visible.width <= 0 || visible.height <= 0) {
+         return 1.0;
+      }
+      return Math.min(1.0, Math.min(
+            (double)visible.width/mImage.getWidth(),
+            (double)visible.height/mImage.getHeight()));
+   }
+
+   private double minZoom() {
+      if(mImage == null) {
+         return 1.0;
+      }
+      return Math.min(1.0,
+            16.0/Math.min(mImage.getWidth(), mImage.getHeight()));
+   }
+
+   private Dimension getImageSize() {
+      if(mImage != null) {
+         return new Dimension((int)Math.ceil(mImage.getWidth()*mZoom),
+                              (int)Math.ceil(mImage.getHeight()*mZoom));
+      } else {
+         return new Dimension(0, 0);
+      }
+   }
+
+   @Override
+   public Dimension getPreferredSize() {
+      return getImageSize();
+   }
+
+   @Override
+   public Dimension getMinimumSize() {
+      return getImageSize();
+   }
+
+   @Override
+   public Dimension getMaximumSize() {
+      return getImageSize();
+   }
+
+   private void mouseWheelMoved(MouseWheelEvent e) {
+      if(!e.isControlDown() || mImage == null) {
+         // Plain scrolling is left to the scroll pane.
+         getParent().dispatchEvent(
+               SwingUtilities.convertMouseEvent(this, e, getParent()));
+         return;
+      }
+
+      double oldZoom = mZoom;
+      setZoom(mZoom*Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()));
+
+      // Keep the point under the mouse where it is.
+      if(getParent() instanceof JViewport) {
+         JViewport viewport = (JViewport)getParent();
+         Point view = viewport.getViewPosition();
+         double scale = mZoom/oldZoom;
+         int x = (int)Math.round(e.getX()*scale - (e.getX() - view.x));
+         int y = (int)Math.round(e.getY()*scale - (e.getY() - view.y));
+         viewport.validate();
+         Dimension extent = viewport.getExtentSize();
+         Dimension size = getPreferredSize();
+         viewport.setViewPosition(new Point(
+               Math.max(0, Math.min(x, size.width - extent.width)),
+               Math.max(0, Math.min(y, size.height - extent.height))));
+      }
+   }
+
+   @Override
+   protected void paintComponent(Graphics g) {
+      Rectangle clip = g.getClipBounds();
+      if(clip == null) {
+         clip = new Rectangle(0, 0, getWidth(), getHeight());
+      }
+      g.setColor(Color.GRAY);
+      g.fillRect(clip.x, clip.y, clip.width, clip.height);
+      if(mImage == null) {
+         return;
+      }
+
+      // Coarsest level that still has at least one pixel per screen pixel.
+      int level = 0;
+      while(level + 1 < mLevels.size() && mZoom*(1 << (level + 1)) <= 1.0) {
+         level++;
+      }
+      BufferedImage source = mLevels.get(level);
+      double scale = mZoom*(1 << level);
+
+      Rectangle image = new Rectangle(getImageSize());
+      Rectangle area = clip.intersection(image);
+      if(area.isEmpty()) {
+         return;
+      }
+      int sx1 = (int)Math.floor(area.x/scale);
+      int sy1 = (int)Math.floor(area.y/scale);
+      int sx2 = Math.min(source.getWidth(),
+            (int)Math.ceil((area.x + area.width)/scale));
+      int sy2 = Math.min(source.getHeight(),
+            (int)Math.ceil((area.y + area.height)/scale));
+
+      Graphics2D g2 = (Graphics2D)g.create();
+      if(scale != 1.0) {
+         g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+               RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      }
+      g2.drawImage(source,
+            (int)Math.round(sx1*scale), (int)Math.round(sy1*scale),
+            (int)Math.round(sx2*scale), (int)Math.round(sy2*scale),
+            sx1, sy1, sx2, sy2, null);
+      g2.dispose();
+   }
+
+   /**
+    * Halves the image until it is small, handing each level to the viewer
+    * as soon as it is done.
+    */
+   private class PyramidBuilder extends SwingWorker<Void, BufferedImage> {
+      private final BufferedImage mFull;
+
+      PyramidBuilder(BufferedImage full) {
+         mFull = full;
+      }
+
+      @Override
+      protected Void doInBackground() {
+         BufferedImage level = mFull;
+         while(Math.max(level.getWidth(), level.getHeight()) > SMALLEST_LEVEL
+               && !isCancelled()) {
+            level = half(level);
+            publish(level);
+         }
+         return null;
+      }
+
+      private BufferedImage half(BufferedImage image) {
+         int type = image.getType() != BufferedImage.TYPE_CUSTOM ?
+               image.getType() : BufferedImage.TYPE_INT_ARGB;
+         BufferedImage half = new BufferedImage(
+               (image.getWidth() + 1)/2, (image.getHeight() + 1)/2, type);
+         Graphics2D g2 = half.createGraphics();
+         g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+               RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+         g2.drawImage(image, 0, 0, half.getWidth(), half.getHeight(), null);
+         g2.dispose();
+         return half;
+      }
+
+      @Override
+      protected void process(List<BufferedImage> levels) {
+         if(!isCancelled() && mBuilder == this) {
+            mLevels.addAll(levels);
+            repaint();
+         }
+      }
+   }
+}
@@ -0,0 +1,159 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Candidate Cache                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Keeps, for every cell of a mosaic, the k tiles with the lowest raw     *
+ * mismatch together with their mismatches, best first. Raw mismatches do   *
+ * not depend on the reuse penalty, the reuse mode or the repeat distance,  *
+ * so a run that only changes those can pick its tiles from the cached      *
+ * candidates instead of comparing every cell with the tiles again. A tile   *
+ * that did not make a cell's list is at least as bad as the last one on    *
+ * it, which tells the engine when a choice made from the list is the same  *
+ * one a full search would make.                                             *
+ *                                                                           *
+ *    The lists are kept in flat int buffers, one record of 2k + 1 ints per  *
+ * cell: the number of candidates (0 while the cell has not been matched),  *
+ * the tiles and the mismatches. Small grids are kept on the heap; larger   *
+ * ones in a memory-mapped temporary file, in segments that never split a   *
+ * record. The file is deleted as soon as it is mapped.                      *
+ *                                                                           *
+ *    Cells are filled as they are first matched, from any number of        *
+ * threads as long as no two of them work on the same cell. A cache can     *
+ * be passed on from run to run, but not be used by two runs at once.        *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class CandidateCache {
+   private static final long SEGMENT_SIZE = 1L << 30;
+
+   private final BufferedImage mImage;
+   private final TileCatalog mCatalog;
+   private final int mK;
+   private final long mHeapBytes;
+
+   private int mCells;
+   private final int mStride;
+   private int mCellsPerSegment;
+   private IntBuffer mSegments[];
+
+   /**
+    * @param image     Image the mosaic is made of, as given to the engine.
+    * @param catalog   Catalog of the tiles.
+    * @param k         Number of candidates kept per cell.
+    * @param heapBytes Caches larger than this are kept in a memory-mapped
+    *                  file rather than on the heap.
+    */
+   public CandidateCache(BufferedImage image, TileCatalog catalog, int k,
+         long heapBytes) {
+      mImage = image;
+      mCatalog = catalog;
+      mK = Math.max(1, Math.min(k, catalog.size()));
+      mHeapBytes = heapBytes;
+      mStride = 2*mK + 1;
+   }
+
+   /**
+    * @return Whether the cache holds the candidates of the image for the
+    *         tiles of the catalog, with at least k of them per cell (or
+    *         all tiles).
+    */
+   public boolean isBuiltFrom(BufferedImage image, TileCatalog catalog,
+         int k) {
+      return image == mImage && catalog == mCatalog
+            && mK >= Math.min(k, catalog.size());
+   }
+
+   public int candidatesPerCell() {
+      return mK;
+   }
+
+   /**
+    * Makes room for the given number of cells. Cells that were filled by
+    * an earlier run are kept if the number of cells is the same.
+    */
+   void prepare(int cells) throws IOException {
+      if(mSegments != null && cells == mCells) {
+         return;
+      }
+      mCells = cells;
+      long bytes = 4L*mStride*cells;
+      if(bytes <= mHeapBytes && bytes <= SEGMENT_SIZE) {
+         mCellsPerSegment = Math.max(1, cells);
+         mSegments = new IntBuffer[] {IntBuffer.allocate(mStride*cells)};
+      } else {
+         map(cells);
+      }
+   }
+
+   private void map(int cells) throws IOException {
+      mCellsPerSegment = (int)(SEGMENT_SIZE/(4L*mStride));
+      int segments = (cells + mCellsPerSegment - 1)/mCellsPerSegment;
+      mSegments = new IntBuffer[segments];
+
+      File file = File.createTempFile("candidates", ".cache");
+      try(FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         for(int i = 0; i < segments; i++) {
+            int count = Math.min(mCellsPerSegment, cells - i*mCellsPerSegment);
+            long start = 4L*mStride*i*mCellsPerSegment;
+            mSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                  start, 4L*mStride*count)
+                  .order(ByteOrder.nativeOrder()).asIntBuffer();
+         }
+      } finally {
+         // The mappings stay valid, on systems that allow it.
+         if(!file.delete()) {
+            file.deleteOnExit();
+         }
+      }
+   }
+
+   /** @return Number of candidates of the cell, 0 if it is not filled. */
+   int count(int cell) {
+      return segment(cell).get(position(cell));
+   }
+
+   /** @return The i-th best tile of the cell. */
+   int tile(int cell, int i) {
+      return segment(cell).get(position(cell) + 1 + i);
+   }
+
+   /** @return Raw mismatch of the i-th best tile of the cell. */
+   int mismatch(int cell, int i) {
+      return segment(cell).get(position(cell) + 1 + mK + i);
+   }
+
+   /**
+    * Fills a cell with its candidates, best first. The count is written
+    * last, so a cancelled run never leaves a cell half filled.
+    */
+   void set(int cell, int tiles[], int mismatches[], int count) {
+      IntBuffer segment = segment(cell);
+      int position = position(cell);
+      for(int i = 0; i < count; i++) {
+         segment.put(position + 1 + i, tiles[i]);
+         segment.put(position + 1 + mK + i, mismatches[i]);
+      }
+      segment.put(position, count);
+   }
+
+   private IntBuffer segment(int cell) {
+      return mSegments[cell/mCellsPerSegment];
+   }
+
+   private int position(int cell) {
+      return (cell%mCellsPerSegment)*mStride;
+   }
+}
@@ -0,0 +1,276 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Deep Zoom Writer                             *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Writes an image as a Deep Zoom (DZI) pyramid: a descriptor file and a  *
+ * directory of fixed-size tiles for every zoom level, which viewers load    *
+ * on demand. Level 0 is a single pixel and every level doubles the size of  *
+ * the one before, up to the full image at the deepest level.                *
+ *                                                                           *
+ *    The full image is never held in memory. The pyramid is walked as a     *
+ * quadtree on a fork-join pool: a tile of the deepest level is drawn by the *
+ * renderer for just its own region, and every other tile is made by         *
+ * halving the four tiles below it once they are written. Only the tiles on  *
+ * the paths being worked on are alive at any time.                          *
+ *                                                                           *
+ *    The descriptor is written last, so a pyramid without one is            *
+ * incomplete. Tiles do not overlap.                                         *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+public class DeepZoomWriter {
+   /**
+    * Draws a region of the full-size image.
+    */
+   public interface Renderer {
+      /**
+       * @param g Graphics of the tile, translated so that the region is
+       *          drawn at its own position in the full image.
+       */
+      void render(Graphics2D g, int x, int y, int width, int height);
+   }
+
+   /**
+    * Is told about every tile written and can stop the export.
+    */
+   public interface Listener {
+      void tileWritten(int level, int col, int row, BufferedImage tile,
+            int written, int total);
+      boolean isCancelled();
+   }
+
+   private File mDescriptor;
+   private File mTileDirectory;
+   private int mWidth, mHeight;
+   private int mTileSize;
+   private String mFormat;
+   private int mImageType;
+   private int mMaxLevel;
+
+   private Renderer mRenderer;
+   private Listener mListener;
+   private AtomicInteger mWritten;
+   private int mTotal;
+
+   /**
+    * @param descriptor The .dzi file. The tiles go to a directory next to
+    *                   it, named after it with "_files" appended.
+    * @param tileSize   Width and height of the tiles.
+    * @param format     "jpg" or "png".
+    * @param imageType  Type of the tile images. Must not have alpha if the
+    *                   format is "jpg".
+    */
+   public DeepZoomWriter(File descriptor, int width, int height,
+         int tileSize, String format, int imageType) {
+      mDescriptor = descriptor;
+      String name = descriptor.getName();
+      int dot = name.lastIndexOf('.');
+      mTileDirectory = new File(descriptor.getAbsoluteFile().getParentFile(),
+            (dot > 0 ? name.substring(0, dot) : name) + "_files");
+      mWidth = width;
+      mHeight = height;
+      mTileSize = tileSize;
+      mFormat = format;
+      mImageType = imageType;
+      mMaxLevel = 32 - Integer.numberOfLeadingZeros(
+            Math.max(width, height) - 1);
+   }
+
+   /** @return Number of the deepest level, which has the full size. */
+   public int maxLevel() {
+      return mMaxLevel;
+   }
+
+   public int levelWidth(int level) {
+      return scaleDown(mWidth, mMaxLevel - level);
+   }
+
+   public int levelHeight(int level) {
+      return scaleDown(mHeight, mMaxLevel - level);
+   }
+
+   /** @return Number of tiles of all levels together. */
+   public int tileCount() {
+      int count = 0;
+      for(int level = 0; level <= mMaxLevel; level++) {
+         count += tiles(levelWidth(level))*tiles(levelHeight(level));
+      }
+      return count;
+   }
+
+   private static int scaleDown(int size, int shift) {
+      return (int)(((long)size + (1L << shift) - 1) >> shift);
+   }
+
+   /**
+    * Writes the pyramid. If the listener cancels the export, the tiles
+    * written so far are deleted.
+    *
+    * @return Whether the pyramid was completed.
+    */
+   public boolean write(ForkJoinPool pool, Renderer renderer,
+         Listener listener) throws IOException {
+      mRenderer = renderer;
+      mListener = listener;
+      mWritten = new AtomicInteger();
+      mTotal = tileCount();
+      for(int level = 0; level <= mMaxLevel; level++) {
+         File directory = new File(mTileDirectory, Integer.toString(level));
+         if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+         }
+      }
+
+      boolean complete = false;
+      try {
+         pool.invoke(new TileTask(0, 0, 0));
+         if(!listener.isCancelled()) {
+            writeDescriptor();
+            complete = true;
+         }
+      } catch(UncheckedIOException ex) {
+         throw ex.getCause();
+      } finally {
+         if(!complete) {
+            delete(mTileDirectory);
+         }
+      }
+      return complete;
+   }
+
+   private int tiles(int size) {
+      return (size + mTileSize - 1)/mTileSize;
+   }
+
+   private void writeDescriptor() throws IOException {
+      try(Writer out = new OutputStreamWriter(
+            new FileOutputStream(mDescriptor), StandardCharsets.UTF_8)) {
+         out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+         out.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\"\n");
+         out.write("       TileSize=\"" + mTileSize + "\" Overlap=\"0\" Format=\""
+               + mFormat + "\">\n");
+         out.write("   <Size Width=\"" + mWidth + "\" Height=\"" + mHeight
+               + "\"/>\n");
+         out.write("</Image>\n");
+      }
+   }
+
+   private static void delete(File file) {
+      File children[] = file.listFiles();
+      if(children != null) {
+         for(File child: children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+
+   /**
+    * Makes, writes and returns one tile of the pyramid.
+    */
+   private class TileTask extends RecursiveTask<BufferedImage> {
+      private final int mLevel, mCol, mRow;
+
+      TileTask(int level, int col, int row) {
+         mLevel = level;
+         mCol = col;
+         mRow = row;
+      }
+
+      @Override
+      protected BufferedImage compute() {
+         int width = Math.min(mTileSize, levelWidth(mLevel) - mCol*mTileSize);
+         int height = Math.min(mTileSize,
+               levelHeight(mLevel) - mRow*mTileSize);
+         if(width <= 0 || height <= 0 || mListener.isCancelled()) {
+            return null;
+         }
+
+         BufferedImage tile = mLevel == mMaxLevel ?
+               render(width, height) : reduce(width, height);
+         if(tile == null) {
+            return null;
+         }
+
+         File file = new File(mTileDirectory, mLevel + File.separator
+               + mCol + "_" + mRow + "." + mFormat);
+         try {
+            ImageIO.write(tile, mFormat, file);
+         } catch(IOException ex) {
+            throw new UncheckedIOException(ex);
+         }
+         mListener.tileWritten(mLevel, mCol, mRow, tile,
+               mWritten.incrementAndGet(), mTotal);
+         return tile;
+      }
+
+      private BufferedImage render(int width, int height) {
+         BufferedImage tile = new BufferedImage(width, height, mImageType);
+         Graphics2D g = tile.createGraphics();
+         int x = mCol*mTileSize, y = mRow*mTileSize;
+         g.translate(-x, -y);
+         mRenderer.render(g, x, y, width, height);
+         g.dispose();
+         return tile;
+      }
+
+      /**
+       * Halves the four tiles of the next level that cover this one.
+       */
+      private BufferedImage reduce(int width, int height) {
+         TileTask children[] = {
+            new TileTask(mLevel + 1, 2*mCol, 2*mRow),
+            new TileTask(mLevel + 1, 2*mCol + 1, 2*mRow),
+            new TileTask(mLevel + 1, 2*mCol, 2*mRow + 1),
+            new TileTask(mLevel + 1, 2*mCol + 1, 2*mRow + 1)
+         };
+         invokeAll(children);
+         if(mListener.isCancelled()) {
+            return null;
+         }
+
+         int canvasWidth = Math.min(2*mTileSize,
+               levelWidth(mLevel + 1) - 2*mCol*mTileSize);
+         int canvasHeight = Math.min(2*mTileSize,
+               levelHeight(mLevel + 1) - 2*mRow*mTileSize);
+         BufferedImage canvas = new BufferedImage(
+               canvasWidth, canvasHeight, mImageType);
+         Graphics2D g = canvas.createGraphics();
+         for(int i = 0; i < children.length; i++) {
+            BufferedImage child = children[i].join();
+            if(child != null) {
+               g.drawImage(child, (i%2)*mTileSize, (i/2)*mTileSize, null);
+            }
+         }
+         g.dispose();
+
+         BufferedImage tile = new BufferedImage(width, height, mImageType);
+         g = tile.createGraphics();
+         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+               RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+         g.drawImage(canvas, 0, 0, width, height, null);
+         g.dispose();
+         return tile;
+      }
+   }
+}
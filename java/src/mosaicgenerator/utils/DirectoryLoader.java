@@ -4,35 +4,101 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
 import javax.swing.SwingWorker;
 
 import mosaicgenerator.components.ImageDirectory;
 
+/**
+ * Brings the images of an ImageDirectory in line with the files in the
+ * directory. The files are checked against the directory's manifest: only
+ * new and changed files are decoded, and images of deleted files are
+ * dropped. The first run simply finds every file new.
+ *
+ * Files are decoded on a pool of threads, with only a bounded number of
+ * files in flight at a time so that memory stays capped. The decoded images
+ * are still added in file order.
+ *
+ * Progress is only counted here; the directory samples it on a timer.
+ */
 public class DirectoryLoader extends SwingWorker<ImageDirectory, String> {
+   private static final int CHECK = 0, LOAD = 1;
+   
    private ImageDirectory mImageDirectory;
+   private ProgressTracker mProgress;
+   private DirectoryManifest mManifest;
+   private TileLibrary mLibrary;
+   private int mThreads;
+   private int mQueueSize;
+   private boolean mLazy;
+   private TileDecoder mDecoder;
+   
+   /**
+    * A decoded file, ready to be added to the directory.
+    */
+   private static class Decoded {
+      DirectoryManifest.Record mRecord;
+      BufferedImage mImage;
+   }
    
    public DirectoryLoader(ImageDirectory progressButton) {
       mImageDirectory = progressButton;
+      mManifest = progressButton.getManifest();
+      mLibrary = progressButton.getLibrary();
+      
+      Settings settings = progressButton.getSettings();
+      mThreads = settings != null && settings.decodeThreads > 0 ?
+            settings.decodeThreads : 
+            Runtime.getRuntime().availableProcessors();
+      mQueueSize = settings != null && settings.decodeQueueSize > 0 ?
+            Math.max(mThreads, settings.decodeQueueSize) : 2*mThreads;
+      int tileSize = settings != null ? 
+            Math.max(settings.tileWidth, settings.tileHeight) : 0;
+      mDecoder = new TileDecoder(mLibrary, tileSize);
+      mLazy = settings != null && settings.lazyTiles;
+      mProgress = new ProgressTracker(
+            new String[] {"Checking files", "Loading"}, 
+            new double[] {1.0, 4.0});
+   }
+   
+   /**
+    * @return Progress of the loader, to be sampled by the user interface.
+    */
+   public ProgressTracker getProgressTracker() {
+      return mProgress;
    }
    
    @Override
    protected ImageDirectory doInBackground() {
       File imageFiles[] = findFiles();
-      loadImages(imageFiles);
+      removeDeletedImages(imageFiles);
+      loadImages(findChangedFiles(imageFiles));
+      saveLibrary();
       return mImageDirectory;
    }
    
    private File[] findFiles() {
       publish("Selecting files.");
       File directory = mImageDirectory.getDirectory();
-      FileFilter filter = getImageFileFilter();
-      return directory.listFiles(filter);
+      FileFilter filter = imageFileFilter();
+      File files[] = directory.listFiles(filter);
+      return files != null ? files : new File[0];
    }
    
-   private FileFilter getImageFileFilter() {
+   /**
+    * @return Filter that accepts the image files tiles are loaded from.
+    */
+   public static FileFilter imageFileFilter() {
       return new FileFilter() {
          @Override
          public boolean accept(File file) {
@@ -48,32 +114,135 @@ public class DirectoryLoader extends SwingWorker<ImageDirectory, String> {
       };
    }
    
-   private void loadImages(File imageFiles[]) {
-      int total = imageFiles.length, loaded = 0;
+   private void removeDeletedImages(File imageFiles[]) {
+      HashSet<String> names = new HashSet<>();
       for(File imageFile: imageFiles) {
-         if(isCancelled()) {
-            break;
+         names.add(imageFile.getName());
+      }
+      
+      for(String name: mManifest.names()) {
+         if(!names.contains(name)) {
+            mImageDirectory.removeImage(name);
+            mManifest.remove(name);
+            if(mLibrary != null) {
+               mLibrary.remove(new File(mImageDirectory.getDirectory(), name));
+            }
          }
-         
-         try {
-            BufferedImage image = ImageIO.read(imageFile);
-            mImageDirectory.addImage(imageFile.getName(), image);
-            updateProgress(++loaded, total);
-         } catch(IOException ignore) {
-            System.out.println("Image failed to load.");
+      }
+   }
+   
+   /**
+    * @return The files that are not in the manifest or whose contents
+    *         changed since they were loaded.
+    */
+   private List<File> findChangedFiles(File imageFiles[]) {
+      List<File> changed = new ArrayList<>();
+      mProgress.begin(CHECK, imageFiles.length);
+      for(File imageFile: imageFiles) {
+         mProgress.advance(CHECK, 1);
+         DirectoryManifest.Record record = mManifest.get(imageFile.getName());
+         if(record == null) {
+            changed.add(imageFile);
+         } else if(!record.matches(imageFile)) {
+            try {
+               long hash = DirectoryManifest.hash(imageFile);
+               if(hash != record.hash) {
+                  changed.add(imageFile);
+               } else {
+                  keepImage(imageFile, record);
+               }
+            } catch(IOException ex) {
+               changed.add(imageFile);
+            }
+         }
+      }
+      return changed;
+   }
+   
+   /**
+    * Only the size or time of the file changed, so the loaded image and the
+    * library entry stay valid.
+    */
+   private void keepImage(File imageFile, DirectoryManifest.Record record) {
+      mManifest.put(imageFile.getName(), new DirectoryManifest.Record(
+            imageFile.length(), imageFile.lastModified(), record.hash));
+      if(mLibrary != null) {
+         mLibrary.revalidate(imageFile, record.size, record.modified);
+      }
+   }
+   
+   private void loadImages(List<File> imageFiles) {
+      int loaded = 0;
+      mProgress.begin(LOAD, imageFiles.size());
+      ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+      ArrayDeque<Future<Decoded>> inFlight = new ArrayDeque<>();
+      Iterator<File> it = imageFiles.iterator();
+      try {
+         while(it.hasNext() || !inFlight.isEmpty()) {
+            while(inFlight.size() < mQueueSize && it.hasNext()) {
+               File imageFile = it.next();
+               inFlight.add(pool.submit(() -> decode(imageFile)));
+            }
+            
+            if(isCancelled()) {
+               break;
+            }
+            
+            File imageFile = imageFiles.get(loaded);
+            try {
+               Decoded decoded = inFlight.poll().get();
+               mImageDirectory.addImage(imageFile.getName(), decoded.mImage);
+               mManifest.put(imageFile.getName(), decoded.mRecord);
+            } catch(ExecutionException ignore) {
+               System.out.println("Image failed to load.");
+            }
+            loaded++;
+            mProgress.advance(LOAD, 1);
          }
+      } catch(InterruptedException cancelled) {
+      } finally {
+         pool.shutdownNow();
       }
    }
    
-   private void updateProgress(int loaded, int total) {
-      int progress = calculateProgress(loaded, total);
-      publish("Loading " + progress + "%");
-      setProgress(progress);
+   private Decoded decode(File imageFile) throws IOException {
+      Decoded decoded = new Decoded();
+      decoded.mRecord = new DirectoryManifest.Record(
+            imageFile.length(), imageFile.lastModified(), 
+            contentHash(imageFile));
+      decoded.mImage = mLazy ? 
+            mDecoder.preview(imageFile) : mDecoder.thumbnail(imageFile);
+      return decoded;
    }
    
-   private int calculateProgress(int loaded, int total) {
-      float progress = ((float)loaded)/((float)total);
-      return (int)(progress*100.0);
+   /**
+    * Takes the content hash from the tile library if it has one for the
+    * file, otherwise hashes the file and adds the hash to the library.
+    */
+   private long contentHash(File imageFile) throws IOException {
+      if(mLibrary != null) {
+         ByteBuffer stored = mLibrary.read(imageFile, TileLibrary.hashKey());
+         if(stored != null) {
+            return stored.getLong();
+         }
+      }
+      
+      long hash = DirectoryManifest.hash(imageFile);
+      if(mLibrary != null) {
+         mLibrary.write(imageFile, TileLibrary.hashKey(), 
+               ByteBuffer.allocate(8).putLong(hash).array());
+      }
+      return hash;
+   }
+   
+   private void saveLibrary() {
+      if(mLibrary != null) {
+         try {
+            mLibrary.save();
+         } catch(IOException ex) {
+            System.out.println("Tile library could not be saved.");
+         }
+      }
    }
    
    @Override
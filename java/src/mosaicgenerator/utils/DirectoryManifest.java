@@ -0,0 +1,80 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                             Directory Manifest                            *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    What was known about each image file of a directory when it was last   *
+ * loaded: its size, modification time and a hash of its contents. When the *
+ * directory changes, the files are checked against the manifest so that    *
+ * only new and changed files are decoded again. A file whose size or time   *
+ * changed but whose contents hash the same is kept as it is.                *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class DirectoryManifest {
+   public static class Record {
+      public final long size;
+      public final long modified;
+      public final long hash;
+      
+      public Record(long size, long modified, long hash) {
+         this.size = size;
+         this.modified = modified;
+         this.hash = hash;
+      }
+      
+      /** @return Whether the file still has the recorded size and time. */
+      public boolean matches(File file) {
+         return size == file.length() && modified == file.lastModified();
+      }
+   }
+   
+   private HashMap<String, Record> mRecords;
+   
+   public DirectoryManifest() {
+      mRecords = new HashMap<>();
+   }
+   
+   public synchronized Record get(String name) {
+      return mRecords.get(name);
+   }
+   
+   public synchronized void put(String name, Record record) {
+      mRecords.put(name, record);
+   }
+   
+   public synchronized void remove(String name) {
+      mRecords.remove(name);
+   }
+   
+   public synchronized Set<String> names() {
+      return new HashSet<>(mRecords.keySet());
+   }
+   
+   /**
+    * @return A CRC-32 of the contents of the file.
+    */
+   public static long hash(File file) throws IOException {
+      CRC32 crc = new CRC32();
+      byte buffer[] = new byte[64*1024];
+      try(InputStream in = new FileInputStream(file)) {
+         int read;
+         while((read = in.read(buffer)) > 0) {
+            crc.update(buffer, 0, read);
+         }
+      }
+      return crc.getValue();
+   }
+}
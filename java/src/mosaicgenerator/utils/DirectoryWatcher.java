@@ -0,0 +1,90 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                             Directory Watcher                             *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Watches a directory with a WatchService and calls back once the        *
+ * directory has been quiet for a moment after a change. The events         *
+ * themselves are not passed on: the callback is expected to compare the     *
+ * directory with what it knows, which also covers events that were lost.    *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+public class DirectoryWatcher implements Runnable {
+   // Files are usually written in several steps; wait until they are done.
+   private static final long QUIET_PERIOD = 500;
+   
+   private Path mDirectory;
+   private Runnable mOnChange;
+   private WatchService mService;
+   private Thread mThread;
+   
+   /**
+    * @param directory Directory to watch.
+    * @param onChange  Called from the watcher thread after a change.
+    */
+   public DirectoryWatcher(File directory, Runnable onChange) {
+      mDirectory = directory.toPath();
+      mOnChange = onChange;
+   }
+   
+   public void start() throws IOException {
+      mService = FileSystems.getDefault().newWatchService();
+      mDirectory.register(mService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+      mThread = new Thread(this, "Watcher " + mDirectory.getFileName());
+      mThread.setDaemon(true);
+      mThread.start();
+   }
+   
+   public void stop() {
+      if(mThread != null) {
+         mThread.interrupt();
+         try {
+            mService.close();
+         } catch(IOException ignore) {
+         }
+         mThread = null;
+      }
+   }
+   
+   @Override
+   public void run() {
+      try {
+         boolean valid = true;
+         while(valid) {
+            WatchKey key = mService.take();
+            valid = drain(key);
+            while((key = mService.poll(QUIET_PERIOD, 
+                  TimeUnit.MILLISECONDS)) != null) {
+               valid = drain(key) && valid;
+            }
+            mOnChange.run();
+         }
+      } catch(InterruptedException | ClosedWatchServiceException stopped) {
+      }
+   }
+   
+   /**
+    * @return Whether the directory can still be watched.
+    */
+   private static boolean drain(WatchKey key) {
+      key.pollEvents();
+      return key.reset();
+   }
+}
@@ -1,103 +1,106 @@
 package mosaicgenerator.utils;
 
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-import javax.imageio.event.IIOWriteProgressListener;
-import javax.imageio.stream.FileImageOutputStream;
 import javax.swing.JProgressBar;
 import javax.swing.SwingWorker;
 
+/**
+ * Saves an image as PNG with PngStreamWriter, which compresses on several
+ * threads. The image is handed to the writer in bands of rows, so progress
+ * is reported and cancelling takes effect after every band.
+ */
 public class ImageSaver extends SwingWorker<Boolean, String> 
-            implements IIOWriteProgressListener,
-                       PropertyChangeListener {
+            implements PropertyChangeListener {
+   private static final int BAND_ROWS = 256;
+   
    private JProgressBar mStatusBar;
    private BufferedImage mImage;
    private File mOutputFile;
-   private ImageWriter mImageWriter;
+   private int mCompressionLevel;
+   private int mCompressionThreads;
    
    public ImageSaver(JProgressBar statusBar, BufferedImage image, File output) {
+      this(statusBar, image, output, 6, 0);
+   }
+   
+   /**
+    * @param level   Deflate level, from 0 (fastest) to 9 (smallest file).
+    * @param threads Number of threads that compress, 0 for all cores.
+    */
+   public ImageSaver(JProgressBar statusBar, BufferedImage image, File output,
+         int level, int threads) {
       mStatusBar = statusBar;
       mImage = image;
       mOutputFile = output;
+      mCompressionLevel = level;
+      mCompressionThreads = threads;
       addPropertyChangeListener(this);
    }
    
-   private void setProgressListener(ImageWriter writer) {
-      writer.addIIOWriteProgressListener(this);
-   }
-   
-   private void removeProgressListeners(ImageWriter writer) {
-      writer.removeIIOWriteProgressListener(this);
-   }
-   
-   private ImageWriter getWriter() {
-      return (ImageWriter)ImageIO.getImageWritersByFormatName("png").next();
-   }
-   
    @Override
    protected Boolean doInBackground() {
-      mImageWriter = getWriter();
-      try (FileImageOutputStream ifoStream = new FileImageOutputStream(mOutputFile))
-      {
-         mImageWriter.setOutput(ifoStream);
-         setProgressListener(mImageWriter);
-         mImageWriter.write(mImage);
-         removeProgressListeners(mImageWriter);
-         mImageWriter = null;
-         return true;
+      boolean alpha = mImage.getColorModel().hasAlpha();
+      boolean written = false;
+      try(PngStreamWriter writer = new PngStreamWriter(mOutputFile, 
+            mImage.getWidth(), mImage.getHeight(), alpha, 
+            mCompressionLevel, mCompressionThreads)) {
+         int height = mImage.getHeight();
+         for(int y = 0; y < height && !isCancelled(); y += BAND_ROWS) {
+            int rows = Math.min(BAND_ROWS, height - y);
+            writer.writeRows(getBand(y, rows, alpha));
+            setProgress((int)(100.0f*(y + rows)/height));
+         }
+         if(!isCancelled()) {
+            writer.finish();
+            written = true;
+         }
       } catch(IOException ex) {
-         return false;
-      } 
-   }
-   
-   @Override
-   protected void done() {
-      mStatusBar.setValue(0);
-   }
-
-   @Override
-   public void propertyChange(PropertyChangeEvent e) {
-      String property = e.getPropertyName();
-      if("state".equals(property))
-      {
-         if(isCancelled() && mImageWriter != null) {
-            mImageWriter.abort();
+         written = false;
+      } finally {
+         if(!written) {
+            mOutputFile.delete();
          }
-      }      
+      }
+      return written;
    }
    
-   @Override
-   public void imageComplete(ImageWriter arg0) {
-      mStatusBar.setValue(0);
+   /**
+    * @return The rows as interleaved BGR or ABGR bytes, which is what the
+    *         writer takes. Images of other types are converted a band at a
+    *         time.
+    */
+   private BufferedImage getBand(int y, int rows, boolean alpha) {
+      BufferedImage band = mImage.getSubimage(0, y, mImage.getWidth(), rows);
+      int type = alpha ? 
+            BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+      if(mImage.getType() == type) {
+         return band;
+      }
+      
+      BufferedImage copy = new BufferedImage(band.getWidth(), rows, type);
+      Graphics2D g2 = copy.createGraphics();
+      g2.setComposite(AlphaComposite.Src);
+      g2.drawImage(band, 0, 0, null);
+      g2.dispose();
+      return copy;
    }
-
-   @Override
-   public void imageProgress(ImageWriter arg0, float arg1) {
-      mStatusBar.setValue((int)arg1);
-   }
-
+   
    @Override
-   public void imageStarted(ImageWriter arg0, int arg1) {
+   protected void done() {
       mStatusBar.setValue(0);
    }
 
    @Override
-   public void writeAborted(ImageWriter arg0) {
-      mStatusBar.setValue(0);
+   public void propertyChange(PropertyChangeEvent e) {
+      if("progress".equals(e.getPropertyName()) && !isCancelled()) {
+         mStatusBar.setValue((Integer)e.getNewValue());
+      }
    }
-
-   @Override
-   public void thumbnailComplete(ImageWriter arg0) {}
-
-   @Override
-   public void thumbnailProgress(ImageWriter arg0, float arg1) {}
-
-   @Override
-   public void thumbnailStarted(ImageWriter arg0, int arg1, int arg2) {}
 }
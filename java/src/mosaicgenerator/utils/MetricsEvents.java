@@ -0,0 +1,41 @@
+package mosaicgenerator.utils;
+
+/**
+ * Reports the stages and runs that MosaicMetrics measures as events of an
+ * event recorder. This one reports nothing. The JDK Flight Recorder events
+ * are in JfrMetricsEvents, which is kept apart so that the rest builds for
+ * Java 8; it is built on Java 11 and later only and used when it is there.
+ */
+class MetricsEvents {
+   private static final MetricsEvents EVENTS = load();
+
+   static MetricsEvents get() {
+      return EVENTS;
+   }
+
+   private static MetricsEvents load() {
+      try {
+         return (MetricsEvents)Class.forName(
+               "mosaicgenerator.utils.JfrMetricsEvents")
+               .getDeclaredConstructor().newInstance();
+      } catch(ReflectiveOperationException | LinkageError ex) {
+         return new MetricsEvents();
+      }
+   }
+
+   /**
+    * Starts timing a stage.
+    *
+    * @return The event of the stage, to be passed to endStage.
+    */
+   Object beginStage() {
+      return null;
+   }
+
+   void endStage(Object event, String job, String stage, long allocated) {
+   }
+
+   void job(String job, long pixels, long tilesPrepared, long comparisons,
+         long comparisonsPruned, long allocated, double pixelsPerSecond) {
+   }
+}
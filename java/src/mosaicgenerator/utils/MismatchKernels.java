@@ -0,0 +1,175 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                             Mismatch Kernels                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    The pixel-by-pixel comparison of a cell with a tile. The mismatch is   *
+ * the root of the summed squared red, green and blue differences divided by *
+ * the number of pixels in a cell.                                           *
+ *                                                                           *
+ *    The kernels walk the raster one pixel at a time and keep a separate    *
+ * sum for each channel. There is one for BGR and one for ABGR rasters.      *
+ *                                                                           *
+ *    All kernels take a limit and may stop as soon as the summed error      *
+ * shows that the mismatch will be above it. The rows are visited           *
+ * coarse-to-fine (every fourth row first) so that bad tiles are usually     *
+ * rejected after a few rows.                                                *
+ *                                                                           *
+ *    On Java 16 and later the same kernels can run on the incubating Vector *
+ * API, see VectorMismatchKernels in src-vector. They are only used when     *
+ * asked for and when the JVM was started with --add-modules                 *
+ * jdk.incubator.vector; otherwise create falls back to these. Both give the *
+ * same mismatch for every cell and tile.                                    *
+ *                                                                           *
+ * ************************************************************************* */
+
+public class MismatchKernels {
+   // Order in which the rows of a cell are compared: every fourth row
+   // first, then the rows in between.
+   static final int ROW_ORDER[] = {0, 2, 1, 3};
+
+   // Mismatch of a white cell against a black tile.
+   public static final int MAX_MISMATCH = 442;
+
+   private final int mPixelStride;
+   private final float mTotal;
+   private final boolean mAlpha;
+
+   /**
+    * @param cellWidth  Width of a full cell.
+    * @param cellHeight Height of a full cell.
+    * @param alpha      Whether the rasters are ABGR rather than BGR.
+    */
+   public MismatchKernels(int cellWidth, int cellHeight, boolean alpha) {
+      mPixelStride = alpha ? 4 : 3;
+      mTotal = cellWidth*cellHeight;
+      mAlpha = alpha;
+   }
+
+   /**
+    * @param vector Whether to use the Vector API kernels, if they can be
+    *               loaded.
+    * @return The kernels for cells of the given size.
+    */
+   public static MismatchKernels create(int cellWidth, int cellHeight, 
+         boolean alpha, boolean vector) {
+      if(vector) {
+         try {
+            return (MismatchKernels)Class.forName(
+                  "mosaicgenerator.utils.VectorMismatchKernels")
+                  .getDeclaredConstructor(int.class, int.class, boolean.class)
+                  .newInstance(cellWidth, cellHeight, alpha);
+         } catch(ReflectiveOperationException | LinkageError ex) {
+            // Not built, or jdk.incubator.vector was not added.
+         }
+      }
+      return new MismatchKernels(cellWidth, cellHeight, alpha);
+   }
+
+   /**
+    * @return Whether these are the Vector API kernels.
+    */
+   public boolean isVector() {
+      return false;
+   }
+
+   /**
+    * Calculates the mismatch between a cell and a tile raster. If the
+    * mismatch is above the limit the result is only guaranteed to be above
+    * the limit as well.
+    * 
+    * The cell is read in place from the source raster. A cell at the right
+    * or bottom edge of the image may be smaller than a full cell; its rows
+    * are then compared with the tile bytes as if the cell had been copied 
+    * into a raster of its own size.
+    *
+    * @param cellRaster     Raster of the source image.
+    * @param cellOffset     Offset of the cell's first pixel in that raster.
+    * @param scanlineStride Bytes from one row of the source to the next.
+    * @param width          Width of the cell in pixels.
+    * @param height         Height of the cell in pixels.
+    * @param tileRaster     Raster holding the tile.
+    * @param tileOffset     Offset of the tile's pixels in the tile raster.
+    * @param limit          Mismatch above which the tile is of no interest.
+    */
+   public int mismatch(byte cellRaster[], int cellOffset, int scanlineStride,
+         int width, int height, byte tileRaster[], int tileOffset, 
+         int limit) {
+      int rowBytes = width*mPixelStride;
+      if(mAlpha) {
+         return normalizeAlphaPixelDiff(cellRaster, cellOffset, scanlineStride,
+               rowBytes, height, tileRaster, tileOffset, limit);
+      } else {
+         return normalizePixelDiff(cellRaster, cellOffset, scanlineStride,
+               rowBytes, height, tileRaster, tileOffset, limit);
+      }
+   }
+
+   private int normalizeAlphaPixelDiff(byte cellRaster[], int cellOffset,
+         int scanlineStride, int rowBytes, int rows, byte tileRaster[],
+         int tileOffset, int limit) {
+      long r = 0, g = 0, b = 0;
+      long threshold = sumThreshold(limit, mTotal);
+      for(int first: ROW_ORDER) {
+         for(int row = first; row < rows; row += ROW_ORDER.length) {
+            int cell = cellOffset + row*scanlineStride;
+            int tile = tileOffset + row*rowBytes;
+            for(int pxOffset = 0; pxOffset < rowBytes; pxOffset += 4) {
+               int dr = ((int)cellRaster[cell+pxOffset+3] & 0xff) - ((int)tileRaster[tile+pxOffset+3] & 0xff);
+               int dg = ((int)cellRaster[cell+pxOffset+2] & 0xff) - ((int)tileRaster[tile+pxOffset+2] & 0xff);
+               int db = ((int)cellRaster[cell+pxOffset+1] & 0xff) - ((int)tileRaster[tile+pxOffset+1] & 0xff);
+
+               r += dr*dr;
+               g += dg*dg;
+               b += db*db;
+            }
+            if(r + g + b > threshold) {
+               return limit + 1;
+            }
+         }
+      }
+      return (int)Math.sqrt(r/mTotal + g/mTotal + b/mTotal);
+   }
+
+   private int normalizePixelDiff(byte cellRaster[], int cellOffset,
+         int scanlineStride, int rowBytes, int rows, byte tileRaster[],
+         int tileOffset, int limit) {
+      long r = 0, g = 0, b = 0;
+      long threshold = sumThreshold(limit, mTotal);
+      for(int first: ROW_ORDER) {
+         for(int row = first; row < rows; row += ROW_ORDER.length) {
+            int cell = cellOffset + row*scanlineStride;
+            int tile = tileOffset + row*rowBytes;
+            for(int pxOffset = 0; pxOffset < rowBytes; pxOffset += 3) {
+               int dr = ((int)cellRaster[cell+pxOffset+2] & 0xff) - ((int)tileRaster[tile+pxOffset+2] & 0xff);
+               int dg = ((int)cellRaster[cell+pxOffset+1] & 0xff) - ((int)tileRaster[tile+pxOffset+1] & 0xff);
+               int db = ((int)cellRaster[cell+pxOffset] & 0xff) - ((int)tileRaster[tile+pxOffset] & 0xff);
+
+               r += dr*dr;
+               g += dg*dg;
+               b += db*db;
+            }
+            if(r + g + b > threshold) {
+               return limit + 1;
+            }
+         }
+      }
+      return (int)Math.sqrt(r/mTotal + g/mTotal + b/mTotal);
+   }
+
+   /**
+    * Smallest sum of squared errors that is guaranteed to give a mismatch
+    * above the limit. The margin covers the float rounding in the final
+    * mismatch calculation.
+    */
+   static long sumThreshold(int limit, float total) {
+      if(limit >= MAX_MISMATCH) {
+         return Long.MAX_VALUE;
+      }
+      double root = limit + 1.0;
+      return (long)Math.ceil(root*root*total*1.00001);
+   }
+}
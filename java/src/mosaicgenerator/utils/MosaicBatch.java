@@ -0,0 +1,272 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                                Mosaic Batch                               *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Turns many source images into mosaics with the same tiles. The tile    *
+ * catalog and its index are prepared once, by the first job that needs     *
+ * them, and then shared read-only by all jobs. Every job keeps its own use  *
+ * counts, so the mosaics are the same as when they are made one by one.     *
+ *                                                                           *
+ *    A few jobs run at the same time (Settings.batchJobs), and their        *
+ * selection tasks share a single fork-join pool. There is one catalog per   *
+ * cell type, as sources with and without alpha are matched differently.    *
+ *                                                                           *
+ *    The kind of output is taken from the extension of the output file:    *
+ * .png (streamed when the mosaic is large), .dzi or .mosaic (a manifest).   *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+public class MosaicBatch {
+   /**
+    * Is told about every job that finishes. Called from the job threads,
+    * one call at a time.
+    */
+   public interface Listener {
+      void jobFinished(Job job, int finished, int total,
+            double imagesPerMinute);
+   }
+
+   /**
+    * A source image and the file its mosaic goes to.
+    */
+   public static class Job {
+      private final File mSource;
+      private final File mOutput;
+      private String mError;
+
+      Job(File source, File output) {
+         mSource = source;
+         mOutput = output;
+      }
+
+      public File getSource() {
+         return mSource;
+      }
+
+      public File getOutput() {
+         return mOutput;
+      }
+
+      /** @return Why the job failed, or null if it succeeded. */
+      public String getError() {
+         return mError;
+      }
+   }
+
+   private List<BufferedImage> mTiles;
+   private List<File> mTileFiles;
+   private TileLibrary mLibrary;
+   private Settings mSettings;
+
+   private List<Job> mJobs;
+   private HashMap<Integer, TileCatalog> mCatalogs;
+   private ForkJoinPool mSelectionPool;
+
+   private volatile boolean mCancelled;
+   private long mStarted;
+   private int mFinished;
+
+   /**
+    * @param tileFiles Files of the tiles, in the same order. May be null,
+    *                  but then no manifests can be written.
+    * @param library   Tile library, may be null.
+    */
+   public MosaicBatch(List<BufferedImage> tiles, List<File> tileFiles,
+         TileLibrary library, Settings settings) {
+      mTiles = tiles;
+      mTileFiles = tileFiles;
+      mLibrary = library;
+      mSettings = settings;
+      mJobs = new ArrayList<>();
+      mCatalogs = new HashMap<>();
+   }
+
+   public void add(File source, File output) {
+      mJobs.add(new Job(source, output));
+   }
+
+   public List<Job> getJobs() {
+      return mJobs;
+   }
+
+   /**
+    * Stops the batch. Running jobs stop at their next check and the rest
+    * are not started.
+    */
+   public void cancel() {
+      mCancelled = true;
+   }
+
+   /**
+    * Runs all jobs and waits for them.
+    *
+    * @return Whether every job succeeded.
+    */
+   public boolean run(Listener listener) {
+      int jobs = Math.max(1, mSettings.batchJobs);
+      int threads = mSettings.selectionThreads > 0 ?
+            mSettings.selectionThreads :
+            Runtime.getRuntime().availableProcessors();
+      mSelectionPool = new ForkJoinPool(threads);
+      ExecutorService jobPool = Executors.newFixedThreadPool(jobs);
+      mStarted = System.nanoTime();
+      mFinished = 0;
+
+      boolean succeeded = true;
+      try {
+         List<Future<?>> running = new ArrayList<>();
+         for(Job job: mJobs) {
+            running.add(jobPool.submit(() -> {
+               runJob(job);
+               finished(job, listener);
+            }));
+         }
+         for(Future<?> future: running) {
+            future.get();
+         }
+      } catch(InterruptedException ex) {
+         mCancelled = true;
+         Thread.currentThread().interrupt();
+      } catch(ExecutionException ex) {
+         throw new IllegalStateException(ex.getCause());
+      } finally {
+         jobPool.shutdownNow();
+         mSelectionPool.shutdown();
+      }
+
+      for(Job job: mJobs) {
+         succeeded &= job.mError == null;
+      }
+      return succeeded && !mCancelled;
+   }
+
+   /**
+    * @return Number of jobs finished per minute since the batch started.
+    */
+   public synchronized double imagesPerMinute() {
+      double minutes = (System.nanoTime() - mStarted)/60e9;
+      return minutes > 0 ? mFinished/minutes : 0.0;
+   }
+
+   private synchronized void finished(Job job, Listener listener) {
+      mFinished++;
+      if(listener != null) {
+         listener.jobFinished(job, mFinished, mJobs.size(),
+               imagesPerMinute());
+      }
+   }
+
+   /**
+    * @return The catalog for a cell type. The first job to run with it
+    *         prepares and indexes it on the shared pool.
+    */
+   private TileCatalog catalogFor(int cellType) {
+      TileCatalog catalog;
+      synchronized(mCatalogs) {
+         catalog = mCatalogs.get(cellType);
+         if(catalog == null) {
+            catalog = new TileCatalog(mTiles, mTileFiles, mLibrary,
+                  new Dimension(mSettings.cellWidth, mSettings.cellHeight),
+                  new Dimension(mSettings.tileWidth, mSettings.tileHeight),
+                  cellType);
+            if(mSettings.lazyTiles) {
+               catalog.setLazy(mSettings.tileCacheBytes);
+            }
+            mCatalogs.put(cellType, catalog);
+         }
+      }
+      return catalog;
+   }
+
+   private void runJob(Job job) {
+      if(mCancelled) {
+         job.mError = "Cancelled.";
+         return;
+      }
+
+      String name = job.mOutput.getName();
+      try {
+         BufferedImage image = ImageIO.read(job.mSource);
+         if(image == null) {
+            throw new IOException("No reader for " + job.mSource.getName());
+         }
+
+         MosaicEngine engine = new MosaicEngine(image, mTiles, mTileFiles,
+               mLibrary, mSettings,
+               catalogFor(MosaicEngine.cellType(image)));
+         engine.setPool(mSelectionPool);
+         engine.getMetrics().setJob(job.mSource.getPath());
+         long size[] = MosaicEngine.mosaicSize(image, mSettings);
+         boolean stream = name.endsWith(".png")
+               && size[0]*size[1] > mSettings.streamingPixels;
+         if(stream) {
+            engine.streamTo(job.mOutput);
+         } else if(name.endsWith(".dzi")) {
+            engine.exportPyramidTo(job.mOutput);
+         }
+
+         BufferedImage result = engine.run(new MosaicEngine.Listener() {
+            @Override
+            public void preview(BufferedImage frame) {
+            }
+            @Override
+            public boolean isCancelled() {
+               return mCancelled;
+            }
+         });
+         if(result == null) {
+            job.mError = "Cancelled.";
+            return;
+         }
+
+         if(name.endsWith(".mosaic")) {
+            MosaicManifest manifest = engine.getManifest();
+            if(manifest == null) {
+               throw new IOException("The tile files are not known.");
+            }
+            manifest.write(job.mOutput);
+         } else if(name.endsWith(".png") && !stream) {
+            writePng(result, job.mOutput);
+         }
+      } catch(IOException | RuntimeException ex) {
+         job.mError = ex.getMessage() != null ?
+               ex.getMessage() : ex.toString();
+      }
+   }
+
+   private void writePng(BufferedImage image, File output)
+         throws IOException {
+      boolean complete = false;
+      try(PngStreamWriter writer = new PngStreamWriter(output,
+            image.getWidth(), image.getHeight(),
+            image.getColorModel().hasAlpha(), mSettings.compressionLevel,
+            mSettings.compressionThreads)) {
+         writer.writeRows(image);
+         writer.finish();
+         complete = true;
+      } finally {
+         if(!complete) {
+            output.delete();
+         }
+      }
+   }
+}
@@ -0,0 +1,1751 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                               Mosaic Engine                               *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ * The following algorithm converts an input image into a mosaic of out of   *
+ * smaller sub images. There are three general steps to accomplish this:     *
+ *                                                                           *
+ *  1. Divide original image.                                                *
+ *                                                                           *
+ *    In this step, the algorithm takes the input image and divides it into  *
+ * cells that will then be replaced with the tiles (provided in the          *
+ * constructor). The cells do not have to be the same size as the tiles, but *
+ * the correspondence between cell and tile will be 1-to-1, which means each *
+ * cell will be replaced by exactly one tile (repeating or not).             *
+ *                                                                           *
+ *    The cells are not copied out of the image. Each cell is a view into    *
+ * the raster of the source image, given by the offset of its first pixel    *
+ * and the scanline stride of the source.                                    *
+ *                                                                           *
+ * 2. Select matching tiles.                                                 *
+ *                                                                           *
+ *    Now the algorithm will go through each cell and compare it to all the  *
+ * input tiles. First, if the cell is a different size than the tiles, then  *
+ * the tiles will be scaled to the size of the cell (this will happen only   *
+ * once and the scaled versions will be saved until the algorithm runs,      *
+ * since all the cells are the same size). Then the cells will be compared   *
+ * with each tile pixel-by-pixel using the manhattan distance. The           *
+ * calculated difference between each cell and tile is (I think at least)    *
+ * the root-mean-square value of each manhattan distance vector. If a tile   *
+ * has been used multiple times, then the mismatch value will be penalized   *
+ * by 15 for each time the tile has been used. All the selected tiles will   *
+ * be returned in an array (again, 1-to-1 mapping to the cells from the      *
+ * original image).                                                          *
+ *                                                                           *
+ *    The prepared tiles are kept in a TileCatalog, which packs the          *
+ * cell-sized rasters of all tiles into a single array. A catalog can be     *
+ * passed on to the next run as long as the tiles and sizes stay the same.   *
+ * If a TileLibrary is given, tiles prepared in an earlier session are read  *
+ * from it instead of being scaled again.                                    *
+ *                                                                           *
+ *    The comparison itself is done by MismatchKernels. A comparison stops   *
+ * as soon as the error summed so far shows that the tile cannot beat the    *
+ * best tile found for the cell.                                             *
+ *                                                                           *
+ *    Comparing every cell with every tile gets slow for large tile sets. A  *
+ * TileIndex over small block signatures of the tiles can be used instead,   *
+ * either in exact mode (same result as the full scan) or in approximate     *
+ * mode, where only a few candidates with the closest signatures are         *
+ * compared pixel-by-pixel. Edge cells that are smaller than the configured  *
+ * cell size are always compared against every tile.                        *
+ *                                                                           *
+ *    When parallel selection is enabled the cells are visited in the same   *
+ * column-major order, but in fixed-size passes. Every cell of a pass is     *
+ * matched concurrently against the use counts as they stood when the pass   *
+ * started, and the use counts are only updated (in cell order) once the     *
+ * whole pass is done. The pass size does not depend on the number of        *
+ * threads, so the same inputs always produce the same mosaic.               *
+ *                                                                           *
+ *    A repeat distance can be set to keep a tile from being placed again    *
+ * within that many cells in any direction. The placements are kept in a     *
+ * PlacementGrid, so checking a tile takes the same time however many have   *
+ * been placed. Parallel passes check against the tiles placed before the    *
+ * pass started, and a cell whose tile turns out to be close to one placed   *
+ * earlier in the same pass is selected again while the pass is merged. The  *
+ * assignment used without reuse does not see the distance, so its cells are *
+ * walked in the same order afterwards and a cell whose tile is close to one *
+ * placed before it gets the best tile that is not, among those with a free  *
+ * slot.                                                                     *
+ *                                                                           *
+ *    The raw mismatches of the best tiles of every cell can be kept in a    *
+ * CandidateCache and passed on to the next run, as the catalog is. A run    *
+ * that only changes the reuse penalty, the reuse mode or the repeat         *
+ * distance then picks from the cached candidates. A cell is only compared   *
+ * with the tiles again when a tile that is not among its candidates could   *
+ * still be chosen. Filling the cache takes more comparisons than a run      *
+ * without it, so only runs that select the tiles again are given one; in    *
+ * the GUI those are started with Reselect.                                  *
+ *                                                                           *
+ * 3. Draw the image.                                                        *
+ *                                                                           *
+ *    This is fairly straight forward. The algorithm just takes all the      *
+ * tiles and pieces them into one big image. Be wary of the size. The        *
+ * resulting image can be quite large.                                       *
+ *                                                                           *
+ *    For mosaics too large to be held in memory, the result can be streamed *
+ * to a PNG file instead. The tiles are selected for the whole grid first,   *
+ * in the same order as for a mosaic in memory, so both give the same        *
+ * mosaic; only the selected tile ids are kept for the whole grid. The image *
+ * is then drawn and written out in horizontal bands of cell rows, so memory *
+ * grows with the band height rather than the image size. Only a scaled-down *
+ * preview of the mosaic is returned.                                        *
+ *                                                                           *
+ *    The mosaic can also be exported as a deep-zoom pyramid of small tiles  *
+ * (see DeepZoomWriter). The tiles are selected for the whole grid as usual, *
+ * but the image is never assembled: each tile of the deepest level is      *
+ * drawn straight from the selection and the levels above it are made by    *
+ * halving the tiles below.                                                  *
+ *                                                                           *
+ *    In progressive mode a draft is shown as soon as the tiles are         *
+ * prepared: every cell gets the tile closest to it in mean colour, which    *
+ * takes a fraction of the real matching. While the exact selection runs,   *
+ * the cells it has finished are drawn over the draft and a small frame is   *
+ * handed to the listener a few times a second.                             *
+ *                                                                           *
+ *    When the files of the tiles are known, the selection can be kept as a  *
+ * MosaicManifest once the run is done, and drawn again later at any size   *
+ * by MosaicRenderer.                                                        *
+ *                                                                           *
+ *    The engine does not depend on Swing. Preview frames and cancellation   *
+ * go through a Listener, so it can run on a headless server (see           *
+ * MosaicCommand) as well as behind the user interface (MosaicMaker). The   *
+ * worker threads only add to the counters of a ProgressTracker, which the  *
+ * user interface samples on a timer.                                        *
+ *                                                                           *
+ *    Every run is measured by MosaicMetrics: the time and allocation of     *
+ * each stage, the tiles prepared and the comparisons done and pruned. The  *
+ * stages also show up as Flight Recorder events, and the numbers of a run  *
+ * are appended to Settings.metricsFile as JSON when it is set.              *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MosaicEngine {
+   /**
+    * Follows a run of the engine. The methods are called from the thread
+    * that runs the engine, or from its worker threads.
+    */
+   public interface Listener {
+      /** A new frame of the progressive preview. */
+      void preview(BufferedImage frame);
+      /** Polled regularly; the run stops as soon as it returns true. */
+      boolean isCancelled();
+   }
+   
+   /** Stages of the progress, see getProgress. */
+   public static final int PREPARE = 0, MATCH = 1, DRAW = 2;
+   private static final String STAGE_NAMES[] = 
+         {"Preparing tiles", "Matching", "Drawing"};
+   private static final double STAGE_WEIGHTS[] = {1.0, 2.0, 1.0};
+   
+   private Listener mListener;
+   private ProgressTracker mProgress;
+   private boolean mComplete;
+   private BufferedImage mImage;
+   
+   // Cell views into the raster of the source image.
+   private byte mSource[];
+   private int mSourceOffset;
+   private int mScanlineStride;
+   private int mPixelStride;
+   private int mCols, mRows;
+   
+   private TileCatalog mCatalog;
+   private int mUseCounts[];
+   
+   // What is needed for the manifest, see getManifest.
+   private Settings mSettings;
+   private List<File> mTileFiles;
+   private File mLibraryFile;
+   private int mSelected[][];
+   
+   private Dimension mCellSize;
+   private Dimension mTileDimension;
+   private int mReusePenalty;
+   
+   // Tiles placed so far, to keep repeats apart. Null if they may touch.
+   private int mRepeatDistance;
+   private PlacementGrid mPlacements;
+   
+   // Assignment without reuse, see assignTiles.
+   private boolean mReuseTiles;
+   private int mTileUses;
+   private int mAssignmentCandidates;
+   
+   // Best tiles of every cell, kept from run to run. Null if not kept.
+   private BufferedImage mInput;
+   private int mCachedCandidates;
+   private long mCandidateHeapBytes;
+   private CandidateCache mCandidates;
+   
+   private boolean mParallelSelection;
+   private int mSelectionThreads;
+   private int mSelectionPassSize;
+   
+   private boolean mUseIndex;
+   private int mIndexCandidates;
+   private TileIndex mIndex;
+   private long mAvoidedBefore, mComparedBefore;
+   
+   private boolean mVectorKernels;
+   private MismatchKernels mKernels;
+   private ForkJoinPool mPool;
+   private ForkJoinPool mSharedPool;
+   
+   // Streaming output, see streamTo.
+   private File mStreamOutput;
+   private int mBandRows;
+   private int mCompressionLevel;
+   private int mCompressionThreads;
+   
+   // Progressive preview frames, see publishFrame.
+   private boolean mProgressive;
+   private BufferedImage mFrame;
+   private double mFrameScale;
+   private long mLastFrame;
+   
+   // Deep-zoom output, see exportPyramidTo.
+   private File mPyramidOutput;
+   private int mPyramidTileSize;
+   private String mPyramidFormat;
+   
+   // Measurements of the run, see getMetrics.
+   private MosaicMetrics mMetrics;
+   private File mMetricsFile;
+   private LongAdder mScanned;
+   
+   /**
+    * Sets up a run.
+    * 
+    * @param image     Image that will be turned to a mosaic.
+    * @param tiles     Images to be used as tiles in creating the mosaic.
+    * @param tileFiles Files the tiles were loaded from, in the same order
+    *                  as the tiles. May be null.
+    * @param library   Library to read prepared tiles from and add newly
+    *                  prepared ones to. May be null.
+    * @param catalog   Catalog of an earlier run, reused if it was built from
+    *                  the same tiles and sizes. May be null.
+    */
+   public MosaicEngine(BufferedImage image, List<BufferedImage> tiles, 
+         List<File> tileFiles, TileLibrary library, Settings settings, 
+         TileCatalog catalog) {
+      mInput = image;
+      mImage = toInterleaved(image);
+      mSettings = settings;
+      if(tileFiles != null && tileFiles.size() == tiles.size()) {
+         mTileFiles = tileFiles;
+         mLibraryFile = library != null ? settings.libraryFile : null;
+      }
+      mCellSize = new Dimension(settings.cellWidth, settings.cellHeight);
+      mTileDimension = new Dimension(settings.tileWidth, settings.tileHeight);
+      mReusePenalty = settings.reusePenalty;
+      mRepeatDistance = settings.repeatDistance;
+      mReuseTiles = settings.reuseTiles;
+      mTileUses = settings.tileUses;
+      mAssignmentCandidates = settings.assignmentCandidates;
+      mCachedCandidates = settings.cachedCandidates;
+      mCandidateHeapBytes = settings.candidateHeapBytes;
+      mParallelSelection = settings.parallelSelection;
+      mSelectionThreads = settings.selectionThreads > 0 ?
+            settings.selectionThreads :
+            Runtime.getRuntime().availableProcessors();
+      mSelectionPassSize = Math.max(1, settings.selectionPassSize);
+      mUseIndex = settings.useTileIndex;
+      mIndexCandidates = settings.indexCandidates;
+      mVectorKernels = settings.vectorKernels;
+      mBandRows = Math.max(1, settings.streamingBandRows);
+      mCompressionLevel = settings.compressionLevel;
+      mCompressionThreads = settings.compressionThreads;
+      mPyramidTileSize = Math.max(1, settings.pyramidTileSize);
+      mPyramidFormat = settings.pyramidFormat;
+      mProgressive = settings.progressivePreview;
+      mMetrics = new MosaicMetrics("mosaic");
+      mProgress = new ProgressTracker(STAGE_NAMES, STAGE_WEIGHTS);
+      mMetricsFile = settings.metricsFile;
+      
+      int cellType = mImage.getType();
+      if(catalog == null || !catalog.isBuiltFrom(tiles, mCellSize, 
+            mTileDimension, cellType)) {
+         catalog = new TileCatalog(tiles, tileFiles, library, mCellSize, 
+               mTileDimension, cellType);
+         if(settings.lazyTiles) {
+            catalog.setLazy(settings.tileCacheBytes);
+         }
+      }
+      mCatalog = catalog;
+   }
+   
+   /**
+    * @return The tile catalog used by this run. It can be passed on to the
+    *         next run.
+    */
+   public TileCatalog getCatalog() {
+      return mCatalog;
+   }
+   
+   /**
+    * Streams the mosaic to a PNG file band by band instead of building it 
+    * in memory. The result of the run is then only a preview. Must be 
+    * called before the run.
+    */
+   public void streamTo(File output) {
+      mStreamOutput = output;
+   }
+   
+   /**
+    * Exports the mosaic as a deep-zoom pyramid instead of building it in
+    * memory. The result of the run is then only a preview. Must be called
+    * before the run.
+    * 
+    * @param descriptor The .dzi file of the pyramid.
+    */
+   public void exportPyramidTo(File descriptor) {
+      mPyramidOutput = descriptor;
+   }
+   
+   /**
+    * @return The file the mosaic is written to by streamTo or 
+    *         exportPyramidTo, or null if it is built in memory.
+    */
+   public File getOutputFile() {
+      return mStreamOutput != null ? mStreamOutput : mPyramidOutput;
+   }
+   
+   /**
+    * @return Progress of the run, with the stages PREPARE, MATCH and DRAW.
+    *         It is meant to be sampled, for example on a timer.
+    */
+   public ProgressTracker getProgress() {
+      return mProgress;
+   }
+   
+   /**
+    * @return The measurements of the run. They are complete once the run
+    *         has returned.
+    */
+   public MosaicMetrics getMetrics() {
+      return mMetrics;
+   }
+   
+   /**
+    * Runs the parallel selection, and the preparation of the tiles, on a
+    * pool that is shared with other runs instead of a pool of its own. The
+    * pool is not shut down by the run.
+    */
+   public void setPool(ForkJoinPool pool) {
+      mSharedPool = pool;
+   }
+   
+   /**
+    * Keeps the best tiles of every cell in a CandidateCache, so that a run
+    * that only changes the reuse settings can select from it instead of 
+    * comparing the cells with the tiles again. The candidates are always
+    * found exactly, so with an approximate tile index the cached runs may
+    * pick better tiles than the others.
+    * 
+    * Filling a cache costs several times the comparisons of a run without
+    * one, so only call this for runs that select the tiles again.
+    * 
+    * @param cache Cache of an earlier run, reused if it was built from the
+    *              same image and catalog. May be null.
+    */
+   public void cacheCandidates(CandidateCache cache) {
+      int k = Math.max(mCachedCandidates, mAssignmentCandidates);
+      if(cache == null || !cache.isBuiltFrom(mInput, mCatalog, k)) {
+         cache = new CandidateCache(mInput, mCatalog, k, mCandidateHeapBytes);
+      }
+      mCandidates = cache;
+   }
+   
+   /**
+    * @return The candidate cache of this run, or null if none is kept. It
+    *         can be passed on to the next run.
+    */
+   public CandidateCache getCandidateCache() {
+      return mCandidates;
+   }
+   
+   /**
+    * @return Type of the cells, and so of the catalog, that a run on the
+    *         image uses.
+    */
+   public static int cellType(BufferedImage image) {
+      int type = image.getType();
+      if(type == BufferedImage.TYPE_3BYTE_BGR 
+            || type == BufferedImage.TYPE_4BYTE_ABGR) {
+         return type;
+      }
+      return image.getColorModel().hasAlpha() ? 
+            BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+   }
+   
+   /**
+    * @return The tile selection of a completed run, or null if the run is
+    *         not complete or the files of the tiles are not known.
+    */
+   public MosaicManifest getManifest() {
+      if(!mComplete || mSelected == null || mTileFiles == null) {
+         return null;
+      }
+      return new MosaicManifest(mSelected, mTileFiles, mLibraryFile, 
+            mSettings, mImage.getType());
+   }
+   
+   /**
+    * @return Width and height of the finished mosaic in pixels.
+    */
+   public static long[] mosaicSize(BufferedImage image, Settings settings) {
+      long cols = (image.getWidth() + settings.cellWidth - 1)
+            /settings.cellWidth;
+      long rows = (image.getHeight() + settings.cellHeight - 1)
+            /settings.cellHeight;
+      return new long[] {cols*settings.tileWidth, rows*settings.tileHeight};
+   }
+   
+   /**
+    * Makes sure the image is stored as interleaved BGR or ABGR bytes, which
+    * is what the cell views and the mismatch kernels expect.
+    */
+   private static BufferedImage toInterleaved(BufferedImage image) {
+      int type = cellType(image);
+      if(type == image.getType()) {
+         return image;
+      }
+      
+      BufferedImage copy = new BufferedImage(
+            image.getWidth(), image.getHeight(), type);
+      Graphics2D g2 = copy.createGraphics();
+      g2.setComposite(AlphaComposite.Src);
+      g2.drawImage(image, 0, 0, null);
+      g2.dispose();
+      return copy;
+   }
+   
+   /**
+    * Makes the mosaic.
+    * 
+    * @return The mosaic, or only a preview of it when it is written to a 
+    *         file, or null if the run was cancelled.
+    */
+   public BufferedImage run(Listener listener) throws IOException {
+      mListener = listener;
+      mScanned = new LongAdder();
+      mMetrics.start();
+      BufferedImage result = makeMosaic();
+      mComplete = result != null && !isCancelled();
+      finishMetrics();
+      return result;
+   }
+   
+   private void finishMetrics() {
+      mMetrics.count("cells", (long)mCols*mRows);
+      mMetrics.count("comparisons", mScanned.sum() + getIndexedComparisons());
+      mMetrics.count("comparisonsPruned", getComparisonsAvoided());
+      mMetrics.count("completed", mComplete ? 1 : 0);
+      mMetrics.finish(mComplete ? (long)mCols*mTileDimension.width
+            *mRows*mTileDimension.height : 0);
+      if(mMetricsFile != null) {
+         try {
+            mMetrics.appendTo(mMetricsFile);
+         } catch(IOException ex) {
+            System.out.println("Metrics could not be written.");
+         }
+      }
+   }
+   
+   private boolean isCancelled() {
+      return mListener.isCancelled();
+   }
+   
+   private BufferedImage makeMosaic() throws IOException {
+      MosaicMetrics.Stage stage = mMetrics.stage("cells");
+      try {
+         getCells();
+      } finally {
+         stage.end();
+      }
+      
+      if(isCancelled()) return null;
+      
+      if(mStreamOutput != null) {
+         return streamMosaic();
+      } else if(mPyramidOutput != null) {
+         return exportPyramid();
+      }
+      
+      int tiles[][] = selectTiles();
+      
+      if(tiles == null || isCancelled()) return null;
+      mSelected = tiles;
+      
+      BufferedImage result = assembleImage(tiles);
+      
+      return result;
+   }
+   
+   /* *********************************************************************** *
+    * Step 1 - Divide image into cells.                                       *
+    * *********************************************************************** */
+   private void getCells() {
+      int imgWidth = mImage.getWidth();
+      int imgHeight = mImage.getHeight();
+
+      // Array dimensions
+      mCols = (int)(Math.ceil((double)imgWidth/(double)mCellSize.width));
+      mRows = (int)(Math.ceil((double)imgHeight/(double)mCellSize.height));
+      
+      WritableRaster raster = mImage.getRaster();
+      ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+      DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+      mSource = buffer.getData();
+      mScanlineStride = model.getScanlineStride();
+      mPixelStride = model.getPixelStride();
+      mSourceOffset = buffer.getOffset()
+            - raster.getSampleModelTranslateY()*mScanlineStride
+            - raster.getSampleModelTranslateX()*mPixelStride;
+   }
+   
+   private int cellOffset(int col, int row) {
+      return mSourceOffset 
+            + row*mCellSize.height*mScanlineStride
+            + col*mCellSize.width*mPixelStride;
+   }
+   
+   private int cellWidth(int col) {
+      return Math.min(mCellSize.width, mImage.getWidth() - col*mCellSize.width);
+   }
+   
+   private int cellHeight(int row) {
+      return Math.min(mCellSize.height, 
+            mImage.getHeight() - row*mCellSize.height);
+   }
+   
+   /* *********************************************************************** *
+    * Step 2 - Get matching tiles for each cell.                              *
+    * *********************************************************************** */
+   private int[][] selectTiles() {
+      startSelection();
+      try {
+         if(mProgressive) {
+            MosaicMetrics.Stage stage = mMetrics.stage("draft");
+            try {
+               showDraft();
+            } finally {
+               stage.end();
+            }
+         }
+         return selectAllTiles();
+      } finally {
+         finishSelection();
+         mFrame = null;
+      }
+   }
+   
+   /**
+    * Prepares the tiles and sets up everything the selection needs. The use
+    * counts start at zero and are kept until the selection is finished.
+    */
+   private void startSelection() {
+      mUseCounts = new int[mCatalog.size()];
+      mPlacements = mRepeatDistance > 0 ?
+            new PlacementGrid(mCols, mRows, mRepeatDistance) : null;
+      mKernels = MismatchKernels.create(mCellSize.width, mCellSize.height,
+            mCatalog.hasAlpha(), mVectorKernels);
+      mMetrics.count("vectorKernels", mKernels.isVector() ? 1 : 0);
+      if(mParallelSelection) {
+         mPool = mSharedPool != null ? 
+               mSharedPool : new ForkJoinPool(mSelectionThreads);
+      }
+      
+      long scaled = mCatalog.tilesScaled(), loaded = mCatalog.tilesLoaded();
+      mProgress.begin(PREPARE, mCatalog.size());
+      MosaicMetrics.Stage stage = mMetrics.stage("prepare");
+      try {
+         mCatalog.prepareAll(mPool != null ? mPool : mSharedPool, 
+               mProgress, PREPARE);
+         saveLibrary();
+      } finally {
+         stage.end();
+      }
+      mProgress.finish(PREPARE);
+      mMetrics.count("tilesScaled", mCatalog.tilesScaled() - scaled);
+      mMetrics.count("tilesLoaded", mCatalog.tilesLoaded() - loaded);
+      buildIndex();
+      if(mCandidates != null) {
+         try {
+            mCandidates.prepare(mCols*mRows);
+         } catch(IOException ex) {
+            System.out.println("Candidates could not be cached.");
+            mCandidates = null;
+         }
+      }
+      mProgress.begin(MATCH, (long)mCols*mRows);
+   }
+   
+   private void finishSelection() {
+      if(mPool != null && mPool != mSharedPool) {
+         mPool.shutdown();
+      }
+      mPool = null;
+   }
+   
+   /**
+    * Selects the tiles for the whole grid, visiting the cells column by 
+    * column.
+    * 
+    * @return The selected tiles, indexed by column and row, or null if the
+    *         run was cancelled.
+    */
+   private int[][] selectAllTiles() {
+      if(!mReuseTiles) {
+         return assignedTiles();
+      }
+      MosaicMetrics.Stage stage = mMetrics.stage("match");
+      try {
+         if(mPool != null) {
+            return selectTilesInParallel();
+         }
+         return selectTilesInOrder();
+      } finally {
+         stage.end();
+      }
+   }
+   
+   private int[][] selectTilesInOrder() {
+      int selectedTiles[][] = new int[mCols][];
+      for(int i = 0; i < selectedTiles.length; i++) {
+         selectedTiles[i] = new int[mRows];
+         for(int j = 0; j < selectedTiles[i].length; j++) {
+            if(isCancelled()) {
+               return null;
+            }
+            selectedTiles[i][j] = selectTile(i, j);
+            drawFrameCell(i, j, selectedTiles[i][j]);
+         }
+         mProgress.advance(MATCH, mRows);
+         publishFrame(false);
+      }
+      return selectedTiles;
+   }
+   
+   private int[][] selectTilesInParallel() {
+      int cols = mCols;
+      int rows = mRows;
+      int total = cols*rows;
+      int selected[] = new int[total];
+      
+      for(int start = 0; start < total; start += mSelectionPassSize) {
+         if(isCancelled()) {
+            return null;
+         }
+         int end = Math.min(total, start + mSelectionPassSize);
+         
+         // Use counts stay frozen while the pass runs...
+         mPool.invoke(new SelectionTask(start, end, selected));
+         
+         // ...and are merged in cell order once it is done. A cell whose
+         // tile was placed close by earlier in the pass is selected again.
+         for(int k = start; k < end; k++) {
+            int col = k/rows, row = k%rows;
+            if(isRepeated(selected[k], col, row)) {
+               selected[k] = findBestTile(col, row);
+            }
+            mUseCounts[selected[k]]++;
+            place(selected[k], col, row);
+            drawFrameCell(col, row, selected[k]);
+         }
+         publishFrame(false);
+         mProgress.advance(MATCH, end - start);
+      }
+      
+      int selectedTiles[][] = new int[cols][rows];
+      for(int k = 0; k < total; k++) {
+         selectedTiles[k/rows][k%rows] = selected[k];
+      }
+      return selectedTiles;
+   }
+   
+   /**
+    * Picks the best tile for a range of cells of one pass. The use counts
+    * are not modified while the task runs.
+    */
+   private class SelectionTask extends RecursiveAction {
+      private final int mStart, mEnd;
+      private final int mSelected[];
+      
+      SelectionTask(int start, int end, int selected[]) {
+         mStart = start;
+         mEnd = end;
+         mSelected = selected;
+      }
+      
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= 1) {
+            for(int k = mStart; k < mEnd && !isCancelled(); k++) {
+               mSelected[k] = findBestTile(k/mRows, k%mRows);
+            }
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new SelectionTask(mStart, mid, mSelected),
+                      new SelectionTask(mid, mEnd, mSelected));
+         }
+      }
+   }
+   
+   private int selectTile(int col, int row) {
+      int selectedTile = findBestTile(col, row);
+      mUseCounts[selectedTile]++;
+      place(selectedTile, col, row);
+      return selectedTile;
+   }
+   
+   private int findBestTile(int col, int row) {
+      int selectedTile = findBestTile(col, row, true);
+      if(selectedTile < 0) {
+         // Every tile has been placed close by, so one has to repeat.
+         selectedTile = findBestTile(col, row, false);
+      }
+      return selectedTile;
+   }
+   
+   /**
+    * @param spaced Whether tiles placed within the repeat distance are
+    *               left out.
+    * @return The best tile, or -1 if every tile was left out.
+    */
+   private int findBestTile(int col, int row, boolean spaced) {
+      if(mCandidates != null) {
+         return findCachedTile(col, row, spaced);
+      }
+      
+      int offset = cellOffset(col, row);
+      int width = cellWidth(col);
+      int height = cellHeight(row);
+      if(mIndex != null && width == mCellSize.width 
+            && height == mCellSize.height) {
+         int selectedTile = findIndexedTile(offset, spaced ? col : -1, row);
+         // The nearest signatures may all have been left out.
+         if(selectedTile >= 0 || mIndexCandidates <= 0) {
+            return selectedTile;
+         }
+      }
+      
+      int selectedMismatch = Integer.MAX_VALUE;
+      int selectedTile = -1;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         if(spaced && isRepeated(tile, col, row)) {
+            continue;
+         }
+         int mismatch = calculateMismatch(tile, offset, width, height,
+               selectedMismatch);
+         if(mismatch < selectedMismatch) {
+            selectedMismatch = mismatch;
+            selectedTile = tile;
+         } else if (mismatch == selectedMismatch) {
+            if (mUseCounts[tile] < mUseCounts[selectedTile]) {
+               selectedTile = tile;
+            }
+         }
+      }
+      mScanned.add(mCatalog.size());
+      return selectedTile;
+   }
+   
+   /**
+    * @param col Column of the cell, -1 to allow tiles placed close by.
+    */
+   private int findIndexedTile(final int offset, final int col, 
+         final int row) {
+      float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+      TileIndex.signature(mSource, offset, mScanlineStride,
+            mCellSize.width, mCellSize.height, mPixelStride, 
+            mCatalog.hasAlpha() ? 1 : 0, signature, 0);
+      
+      TileIndex.Evaluator evaluator = new TileIndex.Evaluator() {
+         @Override
+         public int mismatch(int tile, int bound) {
+            return calculateMismatch(tile, offset, mCellSize.width, 
+                  mCellSize.height, bound);
+         }
+         @Override
+         public int penalty(int tile) {
+            return mUseCounts[tile]*mReusePenalty;
+         }
+         @Override
+         public int useCount(int tile) {
+            return mUseCounts[tile];
+         }
+         @Override
+         public boolean allowed(int tile) {
+            return col < 0 || !isRepeated(tile, col, row);
+         }
+      };
+      
+      if(mIndexCandidates > 0) {
+         return mIndex.nearest(signature, evaluator, mIndexCandidates);
+      } else {
+         return mIndex.nearest(signature, evaluator);
+      }
+   }
+   
+   /**
+    * Picks the best tile for a cell, starting from its cached candidates
+    * and matching the cell first if it is not cached yet. The result is the
+    * same as that of a full scan.
+    * 
+    * @return The best tile, or -1 if every tile was left out.
+    */
+   private int findCachedTile(final int col, final int row, 
+         final boolean spaced) {
+      final int cell = col*mRows + row;
+      if(mCandidates.count(cell) == 0) {
+         int k = mCandidates.candidatesPerCell();
+         int tiles[] = new int[k];
+         int mismatches[] = new int[k];
+         int count = matchCandidates(cell, new TopTiles(k), tiles, mismatches,
+               new float[TileIndex.SIGNATURE_LENGTH]);
+         mCandidates.set(cell, tiles, mismatches, count);
+      }
+      
+      final int count = mCandidates.count(cell);
+      int selectedMismatch = Integer.MAX_VALUE;
+      int selectedTile = -1;
+      for(int i = 0; i < count; i++) {
+         int tile = mCandidates.tile(cell, i);
+         if(spaced && isRepeated(tile, col, row)) {
+            continue;
+         }
+         int mismatch = mCandidates.mismatch(cell, i) 
+               + mUseCounts[tile]*mReusePenalty;
+         if(isBetter(tile, mismatch, selectedTile, selectedMismatch)) {
+            selectedMismatch = mismatch;
+            selectedTile = tile;
+         }
+      }
+      
+      if(count == mCatalog.size()) {
+         return selectedTile;
+      }
+      
+      // Tiles that are not candidates are at least as bad as the last one,
+      // so only those with a low enough penalty have to be compared.
+      final int worst = mCandidates.mismatch(cell, count - 1);
+      final int offset = cellOffset(col, row);
+      int width = cellWidth(col);
+      int height = cellHeight(row);
+      if(mIndex != null && width == mCellSize.width 
+            && height == mCellSize.height) {
+         float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+         TileIndex.signature(mSource, offset, mScanlineStride,
+               width, height, mPixelStride, 
+               mCatalog.hasAlpha() ? 1 : 0, signature, 0);
+         return mIndex.nearest(signature, new TileIndex.Evaluator() {
+            @Override
+            public int mismatch(int tile, int bound) {
+               if(worst + penalty(tile) > bound) {
+                  return bound + 1;
+               }
+               return calculateMismatch(tile, offset, mCellSize.width, 
+                     mCellSize.height, bound);
+            }
+            @Override
+            public int penalty(int tile) {
+               return mUseCounts[tile]*mReusePenalty;
+            }
+            @Override
+            public int useCount(int tile) {
+               return mUseCounts[tile];
+            }
+            @Override
+            public boolean allowed(int tile) {
+               return !(spaced && isRepeated(tile, col, row))
+                     && !isCandidate(cell, count, tile);
+            }
+         }, selectedTile, selectedMismatch);
+      }
+      
+      int compared = 0;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         if(worst + mUseCounts[tile]*mReusePenalty > selectedMismatch
+               || (spaced && isRepeated(tile, col, row))
+               || isCandidate(cell, count, tile)) {
+            continue;
+         }
+         int mismatch = calculateMismatch(tile, offset, width, height, 
+               selectedMismatch);
+         compared++;
+         if(isBetter(tile, mismatch, selectedTile, selectedMismatch)) {
+            selectedMismatch = mismatch;
+            selectedTile = tile;
+         }
+      }
+      mScanned.add(compared);
+      return selectedTile;
+   }
+   
+   /**
+    * @return Whether the first tile beats the second the way a full scan
+    *         decides it: lower mismatch, then fewer uses, then lower id.
+    */
+   private boolean isBetter(int tile, int mismatch, int selectedTile, 
+         int selectedMismatch) {
+      if(selectedTile < 0 || mismatch != selectedMismatch) {
+         return mismatch < selectedMismatch;
+      }
+      int uses = mUseCounts[tile], selectedUses = mUseCounts[selectedTile];
+      return uses < selectedUses || (uses == selectedUses 
+            && tile < selectedTile);
+   }
+   
+   private boolean isCandidate(int cell, int count, int tile) {
+      for(int i = 0; i < count; i++) {
+         if(mCandidates.tile(cell, i) == tile) {
+            return true;
+         }
+      }
+      return false;
+   }
+   
+   /**
+    * @return Whether the tile was placed within the repeat distance of the
+    *         cell.
+    */
+   private boolean isRepeated(int tile, int col, int row) {
+      return mPlacements != null && mPlacements.isNear(tile, col, row);
+   }
+   
+   private void place(int tile, int col, int row) {
+      if(mPlacements != null) {
+         mPlacements.place(tile, col, row);
+      }
+   }
+   
+   /* *********************************************************************** *
+    * Assignment - step 2 without reuse.                                      *
+    * *********************************************************************** */
+   
+   /**
+    * Selects the tiles for the whole grid through the assignment.
+    * 
+    * @return The selected tiles, indexed by column and row, or null if the
+    *         run was cancelled.
+    */
+   private int[][] assignedTiles() {
+      int selectedTiles[][] = assignTiles();
+      if(selectedTiles == null) {
+         return null;
+      }
+      for(int i = 0; i < mCols; i++) {
+         for(int j = 0; j < mRows; j++) {
+            int tile = selectedTiles[i][j];
+            mUseCounts[tile]++;
+            drawFrameCell(i, j, tile);
+         }
+      }
+      publishFrame(true);
+      return selectedTiles;
+   }
+   
+   /**
+    * Assigns a tile to every cell so that no tile is used more often than
+    * allowed and the summed mismatch is as low as possible, see
+    * TileAssignment. The candidates of each cell are its tiles with the
+    * lowest mismatch, found through the tile index where it applies. Cells
+    * that give up on their candidates get the best tile with a free slot.
+    * A repeat distance is enforced afterwards, see spaceAssigned.
+    * 
+    * @return The assigned tiles, indexed by column and row, or null if the
+    *         run was cancelled.
+    */
+   private int[][] assignTiles() {
+      int cells = mCols*mRows;
+      TileAssignment assignment = new TileAssignment(cells, mCatalog.size(),
+            mTileUses, mAssignmentCandidates);
+      
+      MosaicMetrics.Stage stage = mMetrics.stage("match");
+      try {
+         if(mPool != null) {
+            mPool.invoke(new CandidateTask(0, cells, assignment));
+         } else {
+            findCandidates(0, cells, assignment);
+         }
+      } finally {
+         stage.end();
+      }
+      if(isCancelled()) {
+         return null;
+      }
+      
+      int assigned[];
+      stage = mMetrics.stage("assign");
+      try {
+         assigned = assignment.solve(mPool, this::isCancelled);
+      } finally {
+         stage.end();
+      }
+      if(assigned == null) {
+         return null;
+      }
+      
+      long cost = assignment.cost();
+      int left[] = unassigned(assigned);
+      if(left.length > 0) {
+         stage = mMetrics.stage("fallback");
+         try {
+            cost += fillUnassigned(assigned, left, assignment.uses());
+         } finally {
+            stage.end();
+         }
+         if(isCancelled()) {
+            return null;
+         }
+      }
+      if(mPlacements != null && assignment.uses() > 1) {
+         stage = mMetrics.stage("spacing");
+         try {
+            cost += spaceAssigned(assigned, assignment.uses());
+         } finally {
+            stage.end();
+         }
+         if(isCancelled()) {
+            return null;
+         }
+      }
+      mMetrics.count("assignmentRounds", assignment.rounds());
+      mMetrics.count("assignmentFallbacks", left.length);
+      mMetrics.count("assignmentCost", cost);
+      
+      int tiles[][] = new int[mCols][mRows];
+      for(int k = 0; k < cells; k++) {
+         tiles[k/mRows][k%mRows] = assigned[k];
+      }
+      return tiles;
+   }
+   
+   private int[] useCounts(int assigned[]) {
+      int used[] = new int[mCatalog.size()];
+      for(int tile: assigned) {
+         if(tile != TileAssignment.NONE) {
+            used[tile]++;
+         }
+      }
+      return used;
+   }
+   
+   private static int[] unassigned(int assigned[]) {
+      int count = 0;
+      for(int tile: assigned) {
+         if(tile == TileAssignment.NONE) {
+            count++;
+         }
+      }
+      int left[] = new int[count];
+      count = 0;
+      for(int cell = 0; cell < assigned.length; cell++) {
+         if(assigned[cell] == TileAssignment.NONE) {
+            left[count++] = cell;
+         }
+      }
+      return left;
+   }
+   
+   /**
+    * Finds the candidates of a range of cells, numbered column by column.
+    * Cells that are in the candidate cache are not matched again.
+    */
+   private void findCandidates(int start, int end, 
+         TileAssignment assignment) {
+      int k = mCandidates != null ? 
+            mCandidates.candidatesPerCell() : assignment.candidatesPerCell();
+      TopTiles top = new TopTiles(k);
+      int tiles[] = new int[k];
+      int mismatches[] = new int[k];
+      float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+      
+      for(int cell = start; cell < end; cell++) {
+         if(isCancelled()) {
+            return;
+         }
+         int count;
+         if(mCandidates == null) {
+            count = matchCandidates(cell, top, tiles, mismatches, signature);
+         } else {
+            if(mCandidates.count(cell) == 0) {
+               count = matchCandidates(cell, top, tiles, mismatches, 
+                     signature);
+               mCandidates.set(cell, tiles, mismatches, count);
+            }
+            count = mCandidates.count(cell);
+            for(int i = 0; i < count; i++) {
+               tiles[i] = mCandidates.tile(cell, i);
+               mismatches[i] = mCandidates.mismatch(cell, i);
+            }
+         }
+         assignment.setCandidates(cell, tiles, mismatches, 
+               Math.min(count, assignment.candidatesPerCell()));
+      }
+      mProgress.advance(MATCH, end - start);
+   }
+   
+   /**
+    * Gives each cell that is left the tile with the lowest mismatch that 
+    * still has a free slot. The tiles are looked for in parallel against
+    * the slots that were free before; a cell whose tile has been filled
+    * by an earlier cell in the meantime looks again.
+    * 
+    * @return Summed mismatch of the cells.
+    */
+   private long fillUnassigned(int assigned[], int left[], int uses) {
+      int used[] = useCounts(assigned);
+      int best[] = new int[left.length];
+      if(mPool != null) {
+         mPool.invoke(new FallbackTask(left, 0, left.length, used, uses, 
+               best));
+      } else {
+         freeTiles(left, 0, left.length, used, uses, best);
+      }
+      
+      long cost = 0;
+      float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+      for(int i = 0; i < left.length && !isCancelled(); i++) {
+         int cell = left[i];
+         int tile = best[i];
+         if(used[tile] >= uses) {
+            tile = freeTile(cell, used, uses, false, signature);
+         }
+         used[tile]++;
+         assigned[cell] = tile;
+         cost += cellMismatch(cell, tile, Integer.MAX_VALUE);
+      }
+      return cost;
+   }
+   
+   private void freeTiles(int left[], int start, int end, int used[], 
+         int uses, int best[]) {
+      float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+      for(int i = start; i < end && !isCancelled(); i++) {
+         best[i] = freeTile(left[i], used, uses, false, signature);
+      }
+   }
+   
+   /**
+    * Moves the cells that were assigned a tile placed within the repeat 
+    * distance of an earlier cell, in cell order, to the best tile that 
+    * still has a free slot and is not close by. Like the selection with 
+    * reuse, a cell keeps its tile if every tile with a free slot is.
+    * 
+    * @return Change of the summed mismatch.
+    */
+   private long spaceAssigned(int assigned[], int uses) {
+      int used[] = useCounts(assigned);
+      long change = 0;
+      int moved = 0;
+      float signature[] = new float[TileIndex.SIGNATURE_LENGTH];
+      for(int cell = 0; cell < assigned.length && !isCancelled(); cell++) {
+         int col = cell/mRows, row = cell%mRows;
+         int tile = assigned[cell];
+         if(isRepeated(tile, col, row)) {
+            used[tile]--;
+            int spaced = freeTile(cell, used, uses, true, signature);
+            if(spaced >= 0) {
+               change += cellMismatch(cell, spaced, Integer.MAX_VALUE) 
+                     - cellMismatch(cell, tile, Integer.MAX_VALUE);
+               tile = spaced;
+               moved++;
+            }
+            used[tile]++;
+            assigned[cell] = tile;
+         }
+         place(tile, col, row);
+      }
+      mMetrics.count("assignmentSpaced", moved);
+      return change;
+   }
+   
+   /**
+    * @param spaced Whether tiles placed within the repeat distance are
+    *               left out.
+    * @return The tile with the lowest mismatch for a cell among those 
+    *         used fewer times than allowed, or -1 if there is none.
+    */
+   private int freeTile(int cell, final int used[], final int uses, 
+         final boolean spaced, float signature[]) {
+      final int col = cell/mRows, row = cell%mRows;
+      final int offset = cellOffset(col, row);
+      int width = cellWidth(col);
+      int height = cellHeight(row);
+      
+      if(mIndex != null && width == mCellSize.width 
+            && height == mCellSize.height) {
+         TileIndex.signature(mSource, offset, mScanlineStride,
+               width, height, mPixelStride, 
+               mCatalog.hasAlpha() ? 1 : 0, signature, 0);
+         return mIndex.nearest(signature, new TileIndex.Evaluator() {
+            @Override
+            public int mismatch(int tile, int bound) {
+               return mKernels.mismatch(mSource, offset, mScanlineStride,
+                     mCellSize.width, mCellSize.height, 
+                     mCatalog.pixels(), mCatalog.offset(tile), bound);
+            }
+            @Override
+            public int penalty(int tile) {
+               return 0;
+            }
+            @Override
+            public int useCount(int tile) {
+               return 0;
+            }
+            @Override
+            public boolean allowed(int tile) {
+               return used[tile] < uses 
+                     && !(spaced && isRepeated(tile, col, row));
+            }
+         });
+      }
+      
+      int best = -1;
+      int bestMismatch = Integer.MAX_VALUE;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         if(used[tile] >= uses || (spaced && isRepeated(tile, col, row))) {
+            continue;
+         }
+         int mismatch = mKernels.mismatch(mSource, offset, mScanlineStride, 
+               width, height, mCatalog.pixels(), mCatalog.offset(tile), 
+               bestMismatch);
+         if(best < 0 || mismatch < bestMismatch) {
+            best = tile;
+            bestMismatch = mismatch;
+         }
+      }
+      mScanned.add(mCatalog.size());
+      return best;
+   }
+   
+   /**
+    * Finds the tiles with the lowest mismatch for a cell, as many as the 
+    * collector keeps, without any reuse penalty.
+    * 
+    * @return Number of tiles found, copied out best first.
+    */
+   private int matchCandidates(int cell, TopTiles top, int tiles[], 
+         int mismatches[], float signature[]) {
+      final int col = cell/mRows, row = cell%mRows;
+      final int offset = cellOffset(col, row);
+      int width = cellWidth(col);
+      int height = cellHeight(row);
+      
+      if(mIndex != null && width == mCellSize.width 
+            && height == mCellSize.height) {
+         TileIndex.signature(mSource, offset, mScanlineStride,
+               width, height, mPixelStride, 
+               mCatalog.hasAlpha() ? 1 : 0, signature, 0);
+         mIndex.nearest(signature, new TileIndex.Evaluator() {
+            @Override
+            public int mismatch(int tile, int bound) {
+               return mKernels.mismatch(mSource, offset, mScanlineStride,
+                     mCellSize.width, mCellSize.height, 
+                     mCatalog.pixels(), mCatalog.offset(tile), bound);
+            }
+            @Override
+            public int penalty(int tile) {
+               return 0;
+            }
+            @Override
+            public int useCount(int tile) {
+               return 0;
+            }
+            @Override
+            public boolean allowed(int tile) {
+               return true;
+            }
+         }, top);
+      } else {
+         for(int tile = 0; tile < mCatalog.size(); tile++) {
+            top.offer(tile, mKernels.mismatch(mSource, offset, 
+                  mScanlineStride, width, height, mCatalog.pixels(), 
+                  mCatalog.offset(tile), top.bound()));
+         }
+         mScanned.add(mCatalog.size());
+      }
+      return top.drain(tiles, mismatches, 0);
+   }
+   
+   private class CandidateTask extends RecursiveAction {
+      private static final int CELLS = 16;
+      
+      private final int mStart, mEnd;
+      private final TileAssignment mAssignment;
+      
+      CandidateTask(int start, int end, TileAssignment assignment) {
+         mStart = start;
+         mEnd = end;
+         mAssignment = assignment;
+      }
+      
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= CELLS) {
+            findCandidates(mStart, mEnd, mAssignment);
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new CandidateTask(mStart, mid, mAssignment),
+                      new CandidateTask(mid, mEnd, mAssignment));
+         }
+      }
+   }
+   
+   private class FallbackTask extends RecursiveAction {
+      private static final int CELLS = 4;
+      
+      private final int mLeft[];
+      private final int mStart, mEnd;
+      private final int mUsed[];
+      private final int mUses;
+      private final int mBest[];
+      
+      FallbackTask(int left[], int start, int end, int used[], int uses, 
+            int best[]) {
+         mLeft = left;
+         mStart = start;
+         mEnd = end;
+         mUsed = used;
+         mUses = uses;
+         mBest = best;
+      }
+      
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= CELLS) {
+            freeTiles(mLeft, mStart, mEnd, mUsed, mUses, mBest);
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(
+                  new FallbackTask(mLeft, mStart, mid, mUsed, mUses, mBest),
+                  new FallbackTask(mLeft, mid, mEnd, mUsed, mUses, mBest));
+         }
+      }
+   }
+   
+   /**
+    * Mismatch between a cell, numbered column by column, and a tile, 
+    * without any reuse penalty.
+    */
+   private int cellMismatch(int cell, int tile, int bound) {
+      int col = cell/mRows, row = cell%mRows;
+      return mKernels.mismatch(mSource, cellOffset(col, row), 
+            mScanlineStride, cellWidth(col), cellHeight(row), 
+            mCatalog.pixels(), mCatalog.offset(tile), bound);
+   }
+   
+   private void saveLibrary() {
+      try {
+         mCatalog.saveLibrary();
+      } catch(IOException ex) {
+         System.out.println("Tile library could not be saved.");
+      }
+   }
+   
+   private void buildIndex() {
+      if(!mUseIndex) {
+         return;
+      }
+      MosaicMetrics.Stage stage = mMetrics.stage("index");
+      try {
+         mIndex = mCatalog.index();
+      } finally {
+         stage.end();
+      }
+      mAvoidedBefore = mIndex.comparisonsAvoided();
+      mComparedBefore = mIndex.comparisons();
+   }
+   
+   /**
+    * @return Number of exact tile comparisons that the tile index made
+    *         unnecessary. The index is kept with the catalog, so runs that
+    *         share a catalog at the same time are counted together.
+    */
+   public long getComparisonsAvoided() {
+      return mIndex != null ? 
+            mIndex.comparisonsAvoided() - mAvoidedBefore : 0;
+   }
+   
+   /**
+    * @return Number of exact tile comparisons done through the tile index.
+    */
+   public long getIndexedComparisons() {
+      return mIndex != null ? mIndex.comparisons() - mComparedBefore : 0;
+   }
+   
+   /**
+    * Calculates the mismatch between a cell and a tile, reuse penalty
+    * included. If the result would be larger than the given bound, the
+    * comparison may stop early and return any value above the bound.
+    */
+   private int calculateMismatch(int tile, int cellOffset, int width, 
+         int height, int bound) {
+      int penalty = mUseCounts[tile]*mReusePenalty;
+      int limit = bound == Integer.MAX_VALUE ? bound : bound - penalty;
+      if(limit < 0) {
+         return bound + 1;
+      }
+      
+      int difference = mKernels.mismatch(mSource, cellOffset, 
+            mScanlineStride, width, height, 
+            mCatalog.pixels(), mCatalog.offset(tile), limit);
+      return difference + penalty;
+   }
+   
+   /* *********************************************************************** *
+    * Progressive preview.                                                    *
+    * *********************************************************************** */
+   private static final int FRAME_SIZE = 2048;
+   private static final long FRAME_INTERVAL = 250000000L;
+   
+   /**
+    * Matches every cell by mean colour alone and shows the result as the
+    * first frame. The use counts are not touched.
+    */
+   private void showDraft() {
+      int width = mCols*mTileDimension.width;
+      int height = mRows*mTileDimension.height;
+      mFrameScale = Math.min(1.0, (double)FRAME_SIZE/Math.max(width, height));
+      mFrame = new BufferedImage(
+            Math.max(1, (int)Math.round(width*mFrameScale)),
+            Math.max(1, (int)Math.round(height*mFrameScale)),
+            mImage.getType());
+      
+      float tileMeans[] = new float[mCatalog.size()*3];
+      int colour = mCatalog.hasAlpha() ? 1 : 0;
+      for(int tile = 0; tile < mCatalog.size(); tile++) {
+         meanColour(mCatalog.pixels(), mCatalog.offset(tile), 
+               mCellSize.width*mPixelStride, mCellSize.width, 
+               mCellSize.height, colour, tileMeans, tile*3);
+      }
+      
+      int draft[] = new int[mCols*mRows];
+      ForkJoinPool pool = mPool != null ? mPool : ForkJoinPool.commonPool();
+      pool.invoke(new DraftTask(0, mCols, tileMeans, draft));
+      if(isCancelled()) {
+         return;
+      }
+      for(int k = 0; k < draft.length; k++) {
+         drawFrameCell(k/mRows, k%mRows, draft[k]);
+      }
+      publishFrame(true);
+   }
+   
+   private void meanColour(byte raster[], int offset, int scanlineStride,
+         int width, int height, int colour, float means[], int meanOffset) {
+      long c0 = 0, c1 = 0, c2 = 0;
+      for(int y = 0; y < height; y++) {
+         int px = offset + y*scanlineStride + colour;
+         for(int x = 0; x < width; x++, px += mPixelStride) {
+            c0 += raster[px] & 0xff;
+            c1 += raster[px+1] & 0xff;
+            c2 += raster[px+2] & 0xff;
+         }
+      }
+      float count = width*height;
+      means[meanOffset] = c0/count;
+      means[meanOffset+1] = c1/count;
+      means[meanOffset+2] = c2/count;
+   }
+   
+   /**
+    * Finds the tile closest in mean colour for a range of columns.
+    */
+   private class DraftTask extends RecursiveAction {
+      private final int mStartCol, mEndCol;
+      private final float mTileMeans[];
+      private final int mDraft[];
+      
+      DraftTask(int startCol, int endCol, float tileMeans[], int draft[]) {
+         mStartCol = startCol;
+         mEndCol = endCol;
+         mTileMeans = tileMeans;
+         mDraft = draft;
+      }
+      
+      @Override
+      protected void compute() {
+         if(mEndCol - mStartCol > 1) {
+            int mid = (mStartCol + mEndCol) >>> 1;
+            invokeAll(new DraftTask(mStartCol, mid, mTileMeans, mDraft),
+                      new DraftTask(mid, mEndCol, mTileMeans, mDraft));
+            return;
+         }
+         
+         float cell[] = new float[3];
+         int colour = mCatalog.hasAlpha() ? 1 : 0;
+         for(int j = 0; j < mRows && !isCancelled(); j++) {
+            meanColour(mSource, cellOffset(mStartCol, j), mScanlineStride,
+                  cellWidth(mStartCol), cellHeight(j), colour, cell, 0);
+            float best = Float.MAX_VALUE;
+            for(int tile = 0; tile < mTileMeans.length/3; tile++) {
+               float d0 = cell[0] - mTileMeans[tile*3];
+               float d1 = cell[1] - mTileMeans[tile*3+1];
+               float d2 = cell[2] - mTileMeans[tile*3+2];
+               float d = d0*d0 + d1*d1 + d2*d2;
+               if(d < best) {
+                  best = d;
+                  mDraft[mStartCol*mRows + j] = tile;
+               }
+            }
+         }
+      }
+   }
+   
+   private void drawFrameCell(int col, int row, int tile) {
+      if(mFrame == null) {
+         return;
+      }
+      int x = (int)Math.round(col*mTileDimension.width*mFrameScale);
+      int y = (int)Math.round(row*mTileDimension.height*mFrameScale);
+      int x2 = (int)Math.round((col + 1)*mTileDimension.width*mFrameScale);
+      int y2 = (int)Math.round((row + 1)*mTileDimension.height*mFrameScale);
+      Graphics2D g = mFrame.createGraphics();
+      g.drawImage(mCatalog.scaled(tile), x, y, x2 - x, y2 - y, null);
+      g.dispose();
+   }
+   
+   /**
+    * Hands a copy of the frame to the event thread, at most a few times a
+    * second unless forced.
+    */
+   private void publishFrame(boolean force) {
+      if(mFrame == null) {
+         return;
+      }
+      long now = System.nanoTime();
+      if(!force && now - mLastFrame < FRAME_INTERVAL) {
+         return;
+      }
+      mLastFrame = now;
+      
+      BufferedImage copy = new BufferedImage(mFrame.getColorModel(), 
+            mFrame.copyData(null), mFrame.isAlphaPremultiplied(), null);
+      mListener.preview(copy);
+   }
+   
+   /* *********************************************************************** *
+    * Step 3 - Assemble tiles into final image.                               *
+    * *********************************************************************** */
+   private BufferedImage assembleImage(int tiles[][]) {
+      mProgress.begin(DRAW, (long)mCols*mRows);
+      BufferedImage image = createMatchingImage(tiles);
+      drawToImage(image, tiles);
+      return image;
+   }
+   
+   private BufferedImage createMatchingImage(int tiles[][]) {
+      int cols = tiles.length;
+      int rows = tiles[0].length;
+      int width = cols*mTileDimension.width;
+      int height = rows*mTileDimension.height;
+      int type = mImage.getType();
+      return new BufferedImage(width, height, type);
+   }
+   
+   private void drawToImage(BufferedImage destination, 
+                            int tiles[][]) {
+      MosaicMetrics.Stage stage = mMetrics.stage("assemble");
+      try {
+         drawTiles(destination, tiles);
+      } finally {
+         stage.end();
+      }
+   }
+   
+   private void drawTiles(BufferedImage destination, int tiles[][]) {
+      Graphics2D g = destination.createGraphics();
+      for(int i = 0; i < tiles.length; i++) {
+         for(int j = 0; j < tiles[i].length; j++) {
+            if(isCancelled()) return;
+            
+            g.drawImage(mCatalog.scaled(tiles[i][j]), 
+                        i*mTileDimension.width, 
+                        j*mTileDimension.height,
+                        mTileDimension.width,
+                        mTileDimension.height,
+                        null);
+         }
+         mProgress.advance(DRAW, tiles[i].length);
+      }
+      g.dispose();
+   }
+   
+   /* *********************************************************************** *
+    * Streaming - step 3, one band of cell rows at a time.                    *
+    * *********************************************************************** */
+   private static final int PREVIEW_SIZE = 4096;
+   
+   private BufferedImage streamMosaic() throws IOException {
+      int selected[][] = selectTiles();
+      if(selected == null || isCancelled()) {
+         return null;
+      }
+      
+      int width = mCols*mTileDimension.width;
+      int height = mRows*mTileDimension.height;
+      int bands = (mRows + mBandRows - 1)/mBandRows;
+      
+      BufferedImage preview = createPreview(width, height);
+      Graphics2D g = preview.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      double scale = (double)preview.getWidth()/width;
+      
+      boolean complete = false;
+      try(PngStreamWriter writer = new PngStreamWriter(mStreamOutput, 
+            width, height, mCatalog.hasAlpha(), mCompressionLevel, 
+            mCompressionThreads)) {
+         mProgress.begin(DRAW, (long)mCols*mRows);
+         for(int band = 0; band < bands; band++) {
+            int firstRow = band*mBandRows;
+            int lastRow = Math.min(mRows, firstRow + mBandRows);
+            int tiles[][] = new int[mCols][];
+            for(int i = 0; i < mCols; i++) {
+               tiles[i] = Arrays.copyOfRange(selected[i], firstRow, lastRow);
+            }
+            
+            BufferedImage image = new BufferedImage(width, 
+                  (lastRow - firstRow)*mTileDimension.height, 
+                  mImage.getType());
+            drawToImage(image, tiles);
+            if(isCancelled()) {
+               return null;
+            }
+            MosaicMetrics.Stage stage = mMetrics.stage("encode");
+            try {
+               writer.writeRows(image);
+            } finally {
+               stage.end();
+            }
+            
+            int top = (int)Math.round(firstRow*mTileDimension.height*scale);
+            int bottom = (int)Math.round(lastRow*mTileDimension.height*scale);
+            g.drawImage(image, 0, top, preview.getWidth(), bottom - top, 
+                  null);
+         }
+         MosaicMetrics.Stage stage = mMetrics.stage("encode");
+         try {
+            writer.finish();
+         } finally {
+            stage.end();
+         }
+         mSelected = selected;
+         complete = true;
+      } finally {
+         g.dispose();
+         if(!complete) {
+            mStreamOutput.delete();
+         }
+      }
+      return preview;
+   }
+   
+   /* *********************************************************************** *
+    * Deep zoom - step 3 as a pyramid of tiles.                               *
+    * *********************************************************************** */
+   private BufferedImage exportPyramid() throws IOException {
+      final int tiles[][] = selectTiles();
+      if(tiles == null || isCancelled()) {
+         return null;
+      }
+      mSelected = tiles;
+      
+      // JPEG has no alpha, so transparent mosaics are always written as PNG.
+      String format = mCatalog.hasAlpha() ? "png" : mPyramidFormat;
+      DeepZoomWriter writer = new DeepZoomWriter(mPyramidOutput, 
+            mCols*mTileDimension.width, mRows*mTileDimension.height, 
+            mPyramidTileSize, format, mImage.getType());
+      
+      // The preview is the largest level that fits, put together from its
+      // tiles as they are written.
+      int previewLevel = writer.maxLevel();
+      while(previewLevel > 0 && Math.max(writer.levelWidth(previewLevel), 
+            writer.levelHeight(previewLevel)) > PREVIEW_SIZE) {
+         previewLevel--;
+      }
+      final int level = previewLevel;
+      final BufferedImage preview = new BufferedImage(
+            writer.levelWidth(level), writer.levelHeight(level), 
+            mImage.getType());
+      
+      DeepZoomWriter.Renderer renderer = (g, x, y, width, height) -> {
+         int firstCol = x/mTileDimension.width;
+         int lastCol = (x + width - 1)/mTileDimension.width;
+         int firstRow = y/mTileDimension.height;
+         int lastRow = (y + height - 1)/mTileDimension.height;
+         for(int i = firstCol; i <= lastCol; i++) {
+            for(int j = firstRow; j <= lastRow; j++) {
+               g.drawImage(mCatalog.scaled(tiles[i][j]), 
+                           i*mTileDimension.width, 
+                           j*mTileDimension.height,
+                           mTileDimension.width,
+                           mTileDimension.height,
+                           null);
+            }
+         }
+      };
+      DeepZoomWriter.Listener listener = new DeepZoomWriter.Listener() {
+         @Override
+         public void tileWritten(int tileLevel, int col, int row, 
+               BufferedImage tile, int written, int total) {
+            if(tileLevel == level) {
+               synchronized(preview) {
+                  Graphics2D g = preview.createGraphics();
+                  g.drawImage(tile, col*mPyramidTileSize, 
+                        row*mPyramidTileSize, null);
+                  g.dispose();
+               }
+            }
+            mProgress.advance(DRAW, 1);
+         }
+         @Override
+         public boolean isCancelled() {
+            return MosaicEngine.this.isCancelled();
+         }
+      };
+      
+      mProgress.begin(DRAW, writer.tileCount());
+      ForkJoinPool pool = new ForkJoinPool(mCompressionThreads > 0 ?
+            mCompressionThreads : Runtime.getRuntime().availableProcessors());
+      MosaicMetrics.Stage stage = mMetrics.stage("pyramid");
+      try {
+         return writer.write(pool, renderer, listener) ? preview : null;
+      } finally {
+         stage.end();
+         pool.shutdown();
+      }
+   }
+   
+   private BufferedImage createPreview(int width, int height) {
+      double scale = Math.min(1.0, 
+            (double)PREVIEW_SIZE/Math.max(width, height));
+      return new BufferedImage(
+            Math.max(1, (int)Math.round(width*scale)),
+            Math.max(1, (int)Math.round(height*scale)),
+            mImage.getType());
+   }
+}
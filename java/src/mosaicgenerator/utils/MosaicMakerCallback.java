@@ -5,6 +5,17 @@ import java.beans.PropertyChangeListener;
 import javax.swing.JProgressBar;
 
 public interface MosaicMakerCallback {
-   public void makeMosaic(JProgressBar listener, PropertyChangeListener stateListener);
+   /**
+    * @return Whether a mosaic is being made.
+    */
+   public boolean makeMosaic(JProgressBar listener, PropertyChangeListener stateListener);
+   
+   /**
+    * Makes the mosaic again with the current reuse settings, picking the
+    * tiles from the candidates kept by earlier re-selections where it can.
+    * 
+    * @return Whether a mosaic is being made.
+    */
+   public boolean reselectMosaic(JProgressBar listener, PropertyChangeListener stateListener);
    public void stopMosaic();
 }
@@ -0,0 +1,187 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Mosaic Manifest                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    The outcome of a tile selection without any pixels: which tile file   *
+ * went into which cell, plus the settings and tile library the mosaic was  *
+ * made with. MosaicRenderer can draw the mosaic again from a manifest at   *
+ * any tile size without doing any matching.                                 *
+ *                                                                           *
+ * File layout:                                                              *
+ *                                                                           *
+ *    header   magic (8 bytes), version (int)                                *
+ *    settings columns, rows, cell width and height, tile width and height,  *
+ *             image type, reuse penalty (ints)                              *
+ *    library  whether there is one (boolean), its path                      *
+ *    tiles    tile count (int), path of every tile file                     *
+ *    cells    tile number of every cell (ints), column by column           *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class MosaicManifest {
+   private static final long MAGIC = 0x4d4f534149434d46L; // "MOSAICMF"
+   private static final int VERSION = 1;
+
+   private int mCols, mRows;
+   private int mCellWidth, mCellHeight;
+   private int mTileWidth, mTileHeight;
+   private int mImageType;
+   private int mReusePenalty;
+   private File mLibraryFile;
+   private File mTiles[];
+   private int mCells[];
+
+   /**
+    * @param selected  The selected tiles, indexed by column and row.
+    * @param tileFiles Files of the tiles, indexed by tile number.
+    * @param library   The tile library file, may be null.
+    * @param imageType Type of the mosaic image.
+    */
+   public MosaicManifest(int selected[][], List<File> tileFiles,
+         File library, Settings settings, int imageType) {
+      mCols = selected.length;
+      mRows = selected[0].length;
+      mCellWidth = settings.cellWidth;
+      mCellHeight = settings.cellHeight;
+      mTileWidth = settings.tileWidth;
+      mTileHeight = settings.tileHeight;
+      mImageType = imageType;
+      mReusePenalty = settings.reusePenalty;
+      mLibraryFile = library;
+      mTiles = tileFiles.toArray(new File[tileFiles.size()]);
+      mCells = new int[mCols*mRows];
+      for(int i = 0; i < mCols; i++) {
+         System.arraycopy(selected[i], 0, mCells, i*mRows, mRows);
+      }
+   }
+
+   private MosaicManifest() {
+   }
+
+   public static MosaicManifest read(File file) throws IOException {
+      try(DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+         if(in.readLong() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(file.getName() + " is not a mosaic manifest.");
+         }
+
+         MosaicManifest manifest = new MosaicManifest();
+         manifest.mCols = in.readInt();
+         manifest.mRows = in.readInt();
+         manifest.mCellWidth = in.readInt();
+         manifest.mCellHeight = in.readInt();
+         manifest.mTileWidth = in.readInt();
+         manifest.mTileHeight = in.readInt();
+         manifest.mImageType = in.readInt();
+         manifest.mReusePenalty = in.readInt();
+         String library = in.readUTF();
+         manifest.mLibraryFile = library.isEmpty() ? null : new File(library);
+
+         manifest.mTiles = new File[in.readInt()];
+         for(int i = 0; i < manifest.mTiles.length; i++) {
+            manifest.mTiles[i] = new File(in.readUTF());
+         }
+         manifest.mCells = new int[manifest.mCols*manifest.mRows];
+         for(int i = 0; i < manifest.mCells.length; i++) {
+            int tile = in.readInt();
+            if(tile < 0 || tile >= manifest.mTiles.length) {
+               throw new IOException("Damaged mosaic manifest.");
+            }
+            manifest.mCells[i] = tile;
+         }
+         return manifest;
+      }
+   }
+
+   public void write(File file) throws IOException {
+      try(DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)))) {
+         out.writeLong(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(mCols);
+         out.writeInt(mRows);
+         out.writeInt(mCellWidth);
+         out.writeInt(mCellHeight);
+         out.writeInt(mTileWidth);
+         out.writeInt(mTileHeight);
+         out.writeInt(mImageType);
+         out.writeInt(mReusePenalty);
+         out.writeUTF(mLibraryFile != null ?
+               mLibraryFile.getAbsolutePath() : "");
+         out.writeInt(mTiles.length);
+         for(File tile: mTiles) {
+            out.writeUTF(tile.getAbsolutePath());
+         }
+         for(int tile: mCells) {
+            out.writeInt(tile);
+         }
+      }
+   }
+
+   public int cols() {
+      return mCols;
+   }
+
+   public int rows() {
+      return mRows;
+   }
+
+   /** @return Tile number of a cell. */
+   public int tile(int col, int row) {
+      return mCells[col*mRows + row];
+   }
+
+   /** @return File of a tile number. */
+   public File tileFile(int tile) {
+      return mTiles[tile];
+   }
+
+   public int tileCount() {
+      return mTiles.length;
+   }
+
+   /** @return The tile library the mosaic was made with, or null. */
+   public File libraryFile() {
+      return mLibraryFile;
+   }
+
+   public int cellWidth() {
+      return mCellWidth;
+   }
+
+   public int cellHeight() {
+      return mCellHeight;
+   }
+
+   /** @return Width of the tiles the mosaic was made with. */
+   public int tileWidth() {
+      return mTileWidth;
+   }
+
+   /** @return Height of the tiles the mosaic was made with. */
+   public int tileHeight() {
+      return mTileHeight;
+   }
+
+   public int imageType() {
+      return mImageType;
+   }
+
+   public int reusePenalty() {
+      return mReusePenalty;
+   }
+}
@@ -0,0 +1,304 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                               Mosaic Metrics                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Measures a run of the engine: the wall time of each stage, the bytes   *
+ * allocated while it ran, and counters such as the number of tiles that     *
+ * were prepared and of comparisons that were done or pruned. When the run   *
+ * is done the numbers can be appended to a file as one line of JSON.        *
+ *                                                                           *
+ *    Every stage is also committed as a JDK Flight Recorder event, and the  *
+ * run as a whole as one more, so a recording shows them next to the GC and  *
+ * allocation events. Events cost next to nothing when no recording runs.    *
+ * They are only built and sent on Java 11 and later, see MetricsEvents.     *
+ *                                                                           *
+ *    Allocation is measured over all threads of the process, less what      *
+ * threads that ended in the meantime allocated. Runs that overlap, as in a  *
+ * batch, are counted together.                                              *
+ *                                                                           *
+ *    The finished runs of the process are added up in a registry, see       *
+ * totals().                                                                 *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class MosaicMetrics {
+   private static final MosaicMetrics TOTALS = new MosaicMetrics("total");
+
+   private String mJob;
+   private long mStarted;
+   private long mStartBytes[][];
+   private long mWallNanos, mAllocated;
+   private long mPixels;
+   private int mRuns;
+
+   // Name to {nanoseconds, bytes allocated, times run}, in order of first use.
+   private Map<String, long[]> mStages;
+   private Map<String, Long> mCounters;
+
+   public MosaicMetrics(String job) {
+      mJob = job;
+      mStages = new LinkedHashMap<>();
+      mCounters = new LinkedHashMap<>();
+   }
+
+   /**
+    * @return The sums of all runs of the process that have finished.
+    */
+   public static MosaicMetrics totals() {
+      return TOTALS;
+   }
+
+   public synchronized String getJob() {
+      return mJob;
+   }
+
+   /** Names the run in the JSON and the recorded events. */
+   public synchronized void setJob(String job) {
+      mJob = job;
+   }
+
+   /**
+    * Starts timing a stage. The stage is recorded when it is ended; a
+    * stage that runs several times, such as once per band, adds up.
+    */
+   public Stage stage(String name) {
+      return new Stage(name);
+   }
+
+   /** Adds to a counter. */
+   public synchronized void count(String name, long amount) {
+      Long value = mCounters.get(name);
+      mCounters.put(name, value != null ? value + amount : amount);
+   }
+
+   /** @return Value of a counter, 0 if it was never counted. */
+   public synchronized long counter(String name) {
+      Long value = mCounters.get(name);
+      return value != null ? value : 0;
+   }
+
+   /** @return Wall time of a stage in nanoseconds, 0 if it never ran. */
+   public synchronized long stageNanos(String name) {
+      long stage[] = mStages.get(name);
+      return stage != null ? stage[0] : 0;
+   }
+
+   /**
+    * Starts timing the whole run.
+    */
+   public synchronized void start() {
+      mStarted = System.nanoTime();
+      mStartBytes = allocation();
+   }
+
+   /**
+    * Ends the run, commits its event and adds it to the totals.
+    *
+    * @param pixels Number of pixels of the finished mosaic.
+    */
+   public void finish(long pixels) {
+      String job;
+      long tilesPrepared, comparisons, comparisonsPruned, allocated;
+      double pixelsPerSecond;
+      synchronized(this) {
+         mWallNanos = System.nanoTime() - mStarted;
+         mAllocated = allocatedSince(mStartBytes);
+         mPixels = pixels;
+         mRuns = 1;
+
+         job = mJob;
+         tilesPrepared = counter("tilesScaled") + counter("tilesLoaded");
+         comparisons = counter("comparisons");
+         comparisonsPruned = counter("comparisonsPruned");
+         allocated = mAllocated;
+         pixelsPerSecond = pixelsPerSecond();
+      }
+      MetricsEvents.get().job(job, pixels, tilesPrepared, comparisons,
+            comparisonsPruned, allocated, pixelsPerSecond);
+      TOTALS.add(this);
+   }
+
+   /** @return Pixels of the mosaic made per second of wall time. */
+   public synchronized double pixelsPerSecond() {
+      return mWallNanos > 0 ? mPixels/(mWallNanos/1e9) : 0.0;
+   }
+
+   private void add(MosaicMetrics run) {
+      Map<String, long[]> stages;
+      Map<String, Long> counters;
+      synchronized(run) {
+         stages = new LinkedHashMap<>(run.mStages);
+         counters = new LinkedHashMap<>(run.mCounters);
+      }
+      synchronized(this) {
+         mWallNanos += run.mWallNanos;
+         mAllocated += run.mAllocated;
+         mPixels += run.mPixels;
+         mRuns += run.mRuns;
+         for(Map.Entry<String, long[]> stage: stages.entrySet()) {
+            addStage(stage.getKey(), stage.getValue()[0],
+                  stage.getValue()[1], stage.getValue()[2]);
+         }
+         for(Map.Entry<String, Long> counter: counters.entrySet()) {
+            count(counter.getKey(), counter.getValue());
+         }
+      }
+   }
+
+   private synchronized void addStage(String name, long nanos, long bytes,
+         long times) {
+      long stage[] = mStages.get(name);
+      if(stage == null) {
+         stage = new long[3];
+         mStages.put(name, stage);
+      }
+      stage[0] += nanos;
+      stage[1] += bytes;
+      stage[2] += times;
+   }
+
+   /**
+    * @return The metrics as a single line of JSON.
+    */
+   public synchronized String toJson() {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"job\":").append(quote(mJob));
+      json.append(",\"runs\":").append(mRuns);
+      json.append(",\"wallMillis\":").append(millis(mWallNanos));
+      json.append(",\"allocatedBytes\":").append(mAllocated);
+      json.append(",\"pixels\":").append(mPixels);
+      json.append(",\"pixelsPerSecond\":").append(
+            String.format(Locale.ROOT, "%.1f", pixelsPerSecond()));
+
+      json.append(",\"stages\":{");
+      String separator = "";
+      for(Map.Entry<String, long[]> stage: mStages.entrySet()) {
+         long values[] = stage.getValue();
+         json.append(separator).append(quote(stage.getKey()))
+               .append(":{\"millis\":").append(millis(values[0]))
+               .append(",\"allocatedBytes\":").append(values[1])
+               .append(",\"times\":").append(values[2]).append('}');
+         separator = ",";
+      }
+
+      json.append("},\"counters\":{");
+      separator = "";
+      for(Map.Entry<String, Long> counter: mCounters.entrySet()) {
+         json.append(separator).append(quote(counter.getKey()))
+               .append(':').append(counter.getValue());
+         separator = ",";
+      }
+      return json.append("}}").toString();
+   }
+
+   /**
+    * Appends the metrics to a file as one line of JSON. Runs that finish
+    * at the same time write their lines one after the other.
+    */
+   public void appendTo(File file) throws IOException {
+      byte line[] = (toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+      synchronized(MosaicMetrics.class) {
+         try(OutputStream out = new FileOutputStream(file, true)) {
+            out.write(line);
+         }
+      }
+   }
+
+   private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos/1e6);
+   }
+
+   private static String quote(String text) {
+      StringBuilder quoted = new StringBuilder("\"");
+      for(char c: text.toCharArray()) {
+         if(c == '"' || c == '\\') {
+            quoted.append('\\').append(c);
+         } else if(c < 0x20) {
+            quoted.append(String.format("\\u%04x", (int)c));
+         } else {
+            quoted.append(c);
+         }
+      }
+      return quoted.append('"').toString();
+   }
+
+   /**
+    * @return Ids of the live threads of the process and the bytes each has
+    *         allocated so far, or null if the virtual machine does not tell.
+    */
+   private static long[][] allocation() {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+         return null;
+      }
+      com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)bean;
+      if(!threads.isThreadAllocatedMemorySupported()
+            || !threads.isThreadAllocatedMemoryEnabled()) {
+         return null;
+      }
+      long ids[] = threads.getAllThreadIds();
+      return new long[][] {ids, threads.getThreadAllocatedBytes(ids)};
+   }
+
+   /**
+    * @return Bytes allocated since the snapshot by the threads that are
+    *         still alive. Threads started since then count in full.
+    */
+   private static long allocatedSince(long before[][]) {
+      long now[][] = allocation();
+      if(before == null || now == null) {
+         return 0;
+      }
+      Map<Long, Long> previous = new HashMap<>();
+      for(int i = 0; i < before[0].length; i++) {
+         previous.put(before[0][i], before[1][i]);
+      }
+      long total = 0;
+      for(int i = 0; i < now[0].length; i++) {
+         Long bytes = previous.get(now[0][i]);
+         total += Math.max(0, now[1][i] - (bytes != null ? bytes : 0));
+      }
+      return total;
+   }
+
+   /**
+    * A stage that is being timed, until it is ended.
+    */
+   public class Stage {
+      private final String mName;
+      private final long mStart;
+      private final long mBytes[][];
+      private final Object mEvent;
+
+      private Stage(String name) {
+         mName = name;
+         mEvent = MetricsEvents.get().beginStage();
+         mBytes = allocation();
+         mStart = System.nanoTime();
+      }
+
+      public void end() {
+         long nanos = System.nanoTime() - mStart;
+         long bytes = allocatedSince(mBytes);
+         addStage(mName, nanos, bytes, 1);
+         MetricsEvents.get().endStage(mEvent, getJob(), mName, bytes);
+      }
+   }
+}
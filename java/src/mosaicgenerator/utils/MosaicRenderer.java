@@ -0,0 +1,240 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Mosaic Renderer                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Draws a mosaic from its manifest, at any tile size and for any range   *
+ * of cells, without matching anything again.                                *
+ *                                                                           *
+ *    Each tile that appears in the cells is scaled once to the requested    *
+ * size, from the tile library if it has that rendition and from the tile   *
+ * file otherwise. The renditions are made in parallel, and then the cells   *
+ * are drawn in parallel, a range of columns per task.                       *
+ *                                                                           *
+ *    Large renders can be written to a PNG file in bands of cell rows, so   *
+ * only one band and the renditions it uses are held in memory.              *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class MosaicRenderer implements AutoCloseable {
+   private MosaicManifest mManifest;
+   private TileLibrary mLibrary;
+   private ForkJoinPool mPool;
+
+   // Renditions of the tiles at mTileSize, indexed by tile number.
+   private BufferedImage mRenditions[];
+   private Dimension mTileSize;
+   private TileDecoder mDecoder;
+
+   /**
+    * @param library Library to take tile renditions and thumbnails from,
+    *                may be null.
+    * @param threads Number of threads that render, 0 for all cores.
+    */
+   public MosaicRenderer(MosaicManifest manifest, TileLibrary library,
+         int threads) {
+      mManifest = manifest;
+      mLibrary = library;
+      mPool = new ForkJoinPool(threads > 0 ?
+            threads : Runtime.getRuntime().availableProcessors());
+      mRenditions = new BufferedImage[manifest.tileCount()];
+   }
+
+   /** @return All cells of the manifest. */
+   public Rectangle allCells() {
+      return new Rectangle(0, 0, mManifest.cols(), mManifest.rows());
+   }
+
+   /**
+    * Draws a range of cells.
+    *
+    * @param cells      Columns and rows of the cells to draw.
+    * @param tileWidth  Width of a tile in the result.
+    * @param tileHeight Height of a tile in the result.
+    */
+   public BufferedImage render(Rectangle cells, int tileWidth,
+         int tileHeight) {
+      cells = cells.intersection(allCells());
+      setTileSize(tileWidth, tileHeight);
+      prepare(cells);
+
+      BufferedImage image = new BufferedImage(cells.width*tileWidth,
+            cells.height*tileHeight, mManifest.imageType());
+      mPool.invoke(new DrawTask(image, cells, cells.x, cells.x + cells.width));
+      return image;
+   }
+
+   /**
+    * Draws a range of cells straight to a PNG file, a band of cell rows at
+    * a time.
+    *
+    * @param bandRows Number of cell rows drawn at once.
+    * @param level    Deflate level of the PNG.
+    */
+   public void renderTo(File output, Rectangle cells, int tileWidth,
+         int tileHeight, int bandRows, int level) throws IOException {
+      cells = cells.intersection(allCells());
+      bandRows = Math.max(1, bandRows);
+      boolean alpha = new BufferedImage(1, 1, mManifest.imageType())
+            .getColorModel().hasAlpha();
+
+      boolean complete = false;
+      try(PngStreamWriter writer = new PngStreamWriter(output,
+            cells.width*tileWidth, cells.height*tileHeight, alpha, level,
+            mPool.getParallelism())) {
+         for(int row = cells.y; row < cells.y + cells.height;
+               row += bandRows) {
+            int rows = Math.min(bandRows, cells.y + cells.height - row);
+            writer.writeRows(render(
+                  new Rectangle(cells.x, row, cells.width, rows),
+                  tileWidth, tileHeight));
+         }
+         writer.finish();
+         complete = true;
+      } finally {
+         if(!complete) {
+            output.delete();
+         }
+      }
+   }
+
+   @Override
+   public void close() {
+      mPool.shutdown();
+   }
+
+   private void setTileSize(int width, int height) {
+      Dimension size = new Dimension(width, height);
+      if(!size.equals(mTileSize)) {
+         mTileSize = size;
+         mRenditions = new BufferedImage[mManifest.tileCount()];
+         mDecoder = new TileDecoder(mLibrary, Math.max(width, height));
+      }
+   }
+
+   /**
+    * Makes the renditions of the tiles used by the cells and drops the ones
+    * that are not.
+    */
+   private void prepare(Rectangle cells) {
+      boolean used[] = new boolean[mManifest.tileCount()];
+      for(int i = cells.x; i < cells.x + cells.width; i++) {
+         for(int j = cells.y; j < cells.y + cells.height; j++) {
+            used[mManifest.tile(i, j)] = true;
+         }
+      }
+
+      int count = 0;
+      int needed[] = new int[used.length];
+      for(int tile = 0; tile < used.length; tile++) {
+         if(!used[tile]) {
+            mRenditions[tile] = null;
+         } else if(mRenditions[tile] == null) {
+            needed[count++] = tile;
+         }
+      }
+      mPool.invoke(new PrepareTask(needed, 0, count));
+   }
+
+   private BufferedImage rendition(int tile) {
+      File file = mManifest.tileFile(tile);
+      if(mLibrary != null) {
+         BufferedImage scaled = mLibrary.readImage(file,
+               TileLibrary.tileKey(mTileSize));
+         if(scaled != null) {
+            return scaled;
+         }
+      }
+
+      try {
+         boolean small = Math.max(mTileSize.width, mTileSize.height)
+               <= TileDecoder.THUMBNAIL_SIZE;
+         BufferedImage source = small ?
+               mDecoder.thumbnail(file) : mDecoder.decode(file);
+         return ProgressiveBilinear.progressiveScale(source,
+               mTileSize.width, mTileSize.height);
+      } catch(IOException ex) {
+         System.out.println("Tile " + file + " failed to load.");
+         return null;
+      }
+   }
+
+   private class PrepareTask extends RecursiveAction {
+      private final int mTiles[];
+      private final int mStart, mEnd;
+
+      PrepareTask(int tiles[], int start, int end) {
+         mTiles = tiles;
+         mStart = start;
+         mEnd = end;
+      }
+
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= 4) {
+            for(int i = mStart; i < mEnd; i++) {
+               mRenditions[mTiles[i]] = rendition(mTiles[i]);
+            }
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new PrepareTask(mTiles, mStart, mid),
+                      new PrepareTask(mTiles, mid, mEnd));
+         }
+      }
+   }
+
+   /**
+    * Draws a range of columns of the cells. The tasks draw to disjoint
+    * parts of the image.
+    */
+   private class DrawTask extends RecursiveAction {
+      private final BufferedImage mImage;
+      private final Rectangle mCells;
+      private final int mStartCol, mEndCol;
+
+      DrawTask(BufferedImage image, Rectangle cells, int startCol,
+            int endCol) {
+         mImage = image;
+         mCells = cells;
+         mStartCol = startCol;
+         mEndCol = endCol;
+      }
+
+      @Override
+      protected void compute() {
+         if(mEndCol - mStartCol <= 8) {
+            Graphics2D g = mImage.createGraphics();
+            for(int i = mStartCol; i < mEndCol; i++) {
+               for(int j = mCells.y; j < mCells.y + mCells.height; j++) {
+                  BufferedImage tile = mRenditions[mManifest.tile(i, j)];
+                  if(tile != null) {
+                     g.drawImage(tile,
+                           (i - mCells.x)*mTileSize.width,
+                           (j - mCells.y)*mTileSize.height,
+                           mTileSize.width,
+                           mTileSize.height,
+                           null);
+                  }
+               }
+            }
+            g.dispose();
+         } else {
+            int mid = (mStartCol + mEndCol) >>> 1;
+            invokeAll(new DrawTask(mImage, mCells, mStartCol, mid),
+                      new DrawTask(mImage, mCells, mid, mEndCol));
+         }
+      }
+   }
+}
@@ -0,0 +1,107 @@
+package mosaicgenerator.utils;
+
+import java.util.Arrays;
+
+/**
+ * Remembers where tiles have been placed, so that a tile can be kept from
+ * being placed again within a given distance. The grid of cells is split
+ * into square buckets as wide as the distance, each with a small hash table
+ * of the tiles placed in it. A placement within the distance of a cell can
+ * only be in the bucket of the cell or the eight around it, so a check
+ * takes the same time however many tiles and cells there are.
+ *
+ * Checks may run on several threads at once, but not while a tile is
+ * being placed.
+ */
+class PlacementGrid {
+   private static final int EMPTY = -1;
+
+   private final int mDistance;
+   private final int mBucketCols, mBucketRows;
+   // Rows of the cells a bucket can hold, fewer than the distance if the
+   // grid is smaller.
+   private final int mBucketHeight;
+   private final int mMask;
+
+   // Per bucket, created on the first placement: tile ids (EMPTY if the
+   // entry is free) and where in the bucket each was placed.
+   private final int mTiles[][];
+   private final int mPlaces[][];
+
+   /**
+    * @param distance Tiles are not placed again where both the column and
+    *                 the row are within this many cells. At least 1.
+    */
+   PlacementGrid(int cols, int rows, int distance) {
+      mDistance = distance;
+      mBucketCols = (cols + distance - 1)/distance;
+      mBucketRows = (rows + distance - 1)/distance;
+      mBucketHeight = Math.min(distance, rows);
+      // A bucket holds no more cells than this, so its table is never more
+      // than half full.
+      int cells = Math.min(distance, cols)*mBucketHeight;
+      mMask = Integer.highestOneBit(2*cells - 1)*2 - 1;
+      mTiles = new int[mBucketCols*mBucketRows][];
+      mPlaces = new int[mTiles.length][];
+   }
+
+   /**
+    * @return Whether the tile has been placed within the distance of the
+    *         cell.
+    */
+   boolean isNear(int tile, int col, int row) {
+      int bucketCol = col/mDistance, bucketRow = row/mDistance;
+      for(int i = Math.max(0, bucketCol - 1);
+            i <= Math.min(mBucketCols - 1, bucketCol + 1); i++) {
+         for(int j = Math.max(0, bucketRow - 1);
+               j <= Math.min(mBucketRows - 1, bucketRow + 1); j++) {
+            if(isNear(i, j, tile, col, row)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   void place(int tile, int col, int row) {
+      int bucket = (col/mDistance)*mBucketRows + row/mDistance;
+      if(mTiles[bucket] == null) {
+         mTiles[bucket] = new int[mMask + 1];
+         mPlaces[bucket] = new int[mMask + 1];
+         Arrays.fill(mTiles[bucket], EMPTY);
+      }
+      int tiles[] = mTiles[bucket];
+      int i = hash(tile);
+      while(tiles[i] != EMPTY) {
+         i = (i + 1) & mMask;
+      }
+      tiles[i] = tile;
+      mPlaces[bucket][i] = (col%mDistance)*mBucketHeight + row%mDistance;
+   }
+
+   private boolean isNear(int bucketCol, int bucketRow, int tile,
+         int col, int row) {
+      int bucket = bucketCol*mBucketRows + bucketRow;
+      int tiles[] = mTiles[bucket];
+      if(tiles == null) {
+         return false;
+      }
+      for(int i = hash(tile); tiles[i] != EMPTY; i = (i + 1) & mMask) {
+         if(tiles[i] != tile) {
+            continue;
+         }
+         int place = mPlaces[bucket][i];
+         int placedCol = bucketCol*mDistance + place/mBucketHeight;
+         int placedRow = bucketRow*mDistance + place%mBucketHeight;
+         if(Math.abs(placedCol - col) <= mDistance
+               && Math.abs(placedRow - row) <= mDistance) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private int hash(int tile) {
+      return (tile*0x9E3779B9 >>> 16) & mMask;
+   }
+}
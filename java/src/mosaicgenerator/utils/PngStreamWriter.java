@@ -0,0 +1,423 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                             PNG Stream Writer                             *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Writes a PNG file a band of rows at a time, so that an image far too   *
+ * large to be held in memory can be written while it is being made. The    *
+ * header is written up front from the final size; every band is filtered,   *
+ * deflated and appended as IDAT chunks, and the file is closed off with an  *
+ * IEND chunk once the last row is in.                                       *
+ *                                                                           *
+ *    Bands are interleaved BGR or ABGR images (the types MosaicMaker works  *
+ * with) of the full image width. Each row gets the filter with the smallest *
+ * sum of absolute differences, the same heuristic libpng uses.              *
+ *                                                                           *
+ *    Compression is split up the way pigz does it. The rows of a band are   *
+ * cut into blocks of about 128 KB, and the blocks are filtered and then     *
+ * deflated on a pool of threads, each with its own Deflater. A block is     *
+ * primed with the last 32 KB of the block before it as dictionary and ends  *
+ * with a sync flush, so the raw deflate blocks simply follow each other in  *
+ * the zlib stream. The Adler-32 checksums of the blocks are combined on the *
+ * writing thread. The blocks do not depend on the number of threads, so the *
+ * file is always the same.                                                  *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class PngStreamWriter implements Closeable {
+   private static final byte SIGNATURE[] =
+         {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+   private static final int BLOCK_SIZE = 128*1024;
+   private static final int DICTIONARY_SIZE = 32*1024;
+   private static final int ADLER_BASE = 65521;
+
+   private static final int FILTER_NONE = 0;
+   private static final int FILTER_SUB = 1;
+   private static final int FILTER_UP = 2;
+   private static final int FILTER_AVERAGE = 3;
+   private static final int FILTER_PAETH = 4;
+
+   private FileChannel mChannel;
+   private ExecutorService mPool;
+   private int mWidth, mHeight;
+   private boolean mAlpha;
+   private int mBytesPerPixel;
+   private int mRowBytes;
+   private int mBlockRows;
+   private int mLevel;
+   private int mRowsWritten;
+
+   // Carried over from one band to the next.
+   private byte mLastRow[];
+   private byte mDictionary[];
+   private long mAdler;
+
+   /**
+    * A block of filtered rows and what became of it.
+    */
+   private static class Block {
+      byte mFiltered[];
+      int mLength;
+      byte mDictionary[];
+      byte mCompressed[];
+      int mCompressedLength;
+      long mAdler;
+   }
+
+   /**
+    * Creates the file and writes the PNG header.
+    *
+    * @param alpha   Whether the image has an alpha channel.
+    * @param level   Deflate level, from 0 (none) to 9 (best).
+    * @param threads Number of threads that compress, 0 for all cores.
+    */
+   public PngStreamWriter(File file, int width, int height, boolean alpha,
+         int level, int threads) throws IOException {
+      mWidth = width;
+      mHeight = height;
+      mAlpha = alpha;
+      mBytesPerPixel = alpha ? 4 : 3;
+      mRowBytes = width*mBytesPerPixel;
+      mBlockRows = Math.max(1, BLOCK_SIZE/(mRowBytes + 1));
+      mLevel = level;
+      mLastRow = new byte[mRowBytes];
+      mAdler = 1;
+
+      if(threads <= 0) {
+         threads = Runtime.getRuntime().availableProcessors();
+      }
+      mPool = Executors.newFixedThreadPool(threads, (r) -> {
+         Thread thread = new Thread(r, "PNG writer");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      writeFully(ByteBuffer.wrap(SIGNATURE));
+      writeHeader();
+   }
+
+   private void writeHeader() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(13);
+      header.putInt(mWidth);
+      header.putInt(mHeight);
+      header.put((byte)8);                // bit depth
+      header.put((byte)(mAlpha ? 6 : 2)); // RGBA or RGB
+      header.put((byte)0);                // deflate
+      header.put((byte)0);                // adaptive filtering
+      header.put((byte)0);                // no interlace
+      writeChunk("IHDR", header.array(), header.capacity());
+
+      // zlib header: deflate with a 32 KB window, no preset dictionary.
+      writeChunk("IDAT", new byte[] {0x78, (byte)0x9c}, 2);
+   }
+
+   /**
+    * Appends the rows of a band to the image.
+    */
+   public void writeRows(BufferedImage band) throws IOException {
+      if(band.getWidth() != mWidth
+            || mRowsWritten + band.getHeight() > mHeight) {
+         throw new IllegalArgumentException("Band does not fit the image.");
+      }
+
+      WritableRaster raster = band.getRaster();
+      ComponentSampleModel model =
+            (ComponentSampleModel)raster.getSampleModel();
+      byte data[] = ((DataBufferByte)raster.getDataBuffer()).getData();
+      int stride = model.getScanlineStride();
+      int offset = raster.getDataBuffer().getOffset()
+            - raster.getSampleModelTranslateY()*stride
+            - raster.getSampleModelTranslateX()*model.getPixelStride();
+
+      // Filter the blocks...
+      int rows = band.getHeight();
+      List<Block> blocks = new ArrayList<>();
+      List<Callable<Block>> filtering = new ArrayList<>();
+      for(int first = 0; first < rows; first += mBlockRows) {
+         int start = first;
+         int end = Math.min(rows, first + mBlockRows);
+         Block block = new Block();
+         blocks.add(block);
+         filtering.add(() -> filterBlock(block, data, offset, stride,
+               start, end));
+      }
+      runAll(filtering);
+
+      // ...hand each one the tail of the one before as dictionary...
+      List<Callable<Block>> compressing = new ArrayList<>();
+      for(Block block: blocks) {
+         block.mDictionary = mDictionary;
+         mDictionary = tail(block.mFiltered);
+         compressing.add(() -> compressBlock(block));
+      }
+      int last = offset + (rows - 1)*stride;
+      toRgb(data, last, mLastRow);
+
+      // ...and write them out in order.
+      runAll(compressing);
+      for(Block block: blocks) {
+         mAdler = combineAdler(mAdler, block.mAdler, block.mLength);
+         if(block.mCompressedLength > 0) {
+            writeChunk("IDAT", block.mCompressed, block.mCompressedLength);
+         }
+      }
+      mRowsWritten += rows;
+   }
+
+   /**
+    * Writes the end of the compressed stream and the end of the file.
+    */
+   public void finish() throws IOException {
+      if(mRowsWritten != mHeight) {
+         throw new IOException("Only " + mRowsWritten + " of " + mHeight
+               + " rows were written.");
+      }
+
+      // An empty final block closes the deflate stream.
+      Deflater deflater = new Deflater(mLevel, true);
+      deflater.finish();
+      byte end[] = new byte[64];
+      int length = 0;
+      while(!deflater.finished()) {
+         length += deflater.deflate(end, length, end.length - length);
+      }
+      deflater.end();
+
+      ByteBuffer trailer = ByteBuffer.allocate(length + 4);
+      trailer.put(end, 0, length);
+      trailer.putInt((int)mAdler);
+      writeChunk("IDAT", trailer.array(), trailer.capacity());
+      writeChunk("IEND", new byte[0], 0);
+      mChannel.force(false);
+   }
+
+   @Override
+   public void close() throws IOException {
+      mPool.shutdownNow();
+      mChannel.close();
+   }
+
+   public int rowsWritten() {
+      return mRowsWritten;
+   }
+
+   private Block filterBlock(Block block, byte data[], int offset,
+         int stride, int start, int end) {
+      byte row[] = new byte[mRowBytes];
+      byte previous[] = new byte[mRowBytes];
+      byte scratch[][] = new byte[5][1 + mRowBytes];
+      if(start > 0) {
+         toRgb(data, offset + (start - 1)*stride, previous);
+      } else {
+         System.arraycopy(mLastRow, 0, previous, 0, mRowBytes);
+      }
+
+      block.mFiltered = new byte[(end - start)*(1 + mRowBytes)];
+      block.mLength = block.mFiltered.length;
+      for(int y = start; y < end; y++) {
+         toRgb(data, offset + y*stride, row);
+         byte filtered[] = filterRow(row, previous, mBytesPerPixel, scratch);
+         System.arraycopy(filtered, 0, block.mFiltered,
+               (y - start)*filtered.length, filtered.length);
+         byte swap[] = previous;
+         previous = row;
+         row = swap;
+      }
+      return block;
+   }
+
+   private Block compressBlock(Block block) {
+      Deflater deflater = new Deflater(mLevel, true);
+      if(block.mDictionary != null) {
+         deflater.setDictionary(block.mDictionary);
+      }
+      deflater.setInput(block.mFiltered);
+
+      byte out[] = new byte[block.mFiltered.length/2 + 1024];
+      int length = 0;
+      while(true) {
+         length += deflater.deflate(out, length, out.length - length,
+               Deflater.SYNC_FLUSH);
+         if(length < out.length) {
+            break;
+         }
+         out = Arrays.copyOf(out, out.length*2);
+      }
+      deflater.end();
+
+      Adler32 adler = new Adler32();
+      adler.update(block.mFiltered);
+      block.mCompressed = out;
+      block.mCompressedLength = length;
+      block.mAdler = adler.getValue();
+      block.mFiltered = null;
+      block.mDictionary = null;
+      return block;
+   }
+
+   private void runAll(List<Callable<Block>> tasks) throws IOException {
+      try {
+         for(Future<Block> result: mPool.invokeAll(tasks)) {
+            result.get();
+         }
+      } catch(InterruptedException ex) {
+         throw new InterruptedIOException("PNG writing was interrupted.");
+      } catch(ExecutionException ex) {
+         throw new IOException(ex.getCause());
+      }
+   }
+
+   private static byte[] tail(byte filtered[]) {
+      int length = Math.min(DICTIONARY_SIZE, filtered.length);
+      byte tail[] = new byte[length];
+      System.arraycopy(filtered, filtered.length - length, tail, 0, length);
+      return tail;
+   }
+
+   /**
+    * Checksum of two pieces of data from the checksums of the pieces, as
+    * adler32_combine in zlib does it.
+    */
+   private static long combineAdler(long first, long second,
+         long secondLength) {
+      long rem = secondLength % ADLER_BASE;
+      long sum1 = first & 0xffff;
+      long sum2 = (rem*sum1) % ADLER_BASE;
+      sum1 += (second & 0xffff) + ADLER_BASE - 1;
+      sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff)
+            + ADLER_BASE - rem;
+      if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+      if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+      if(sum2 >= 2*ADLER_BASE) sum2 -= 2*ADLER_BASE;
+      if(sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+      return sum1 | (sum2 << 16);
+   }
+
+   /**
+    * Converts a row of BGR or ABGR bytes to RGB or RGBA.
+    */
+   private void toRgb(byte data[], int offset, byte row[]) {
+      if(mAlpha) {
+         for(int i = 0; i < row.length; i += 4) {
+            row[i] = data[offset+i+3];
+            row[i+1] = data[offset+i+2];
+            row[i+2] = data[offset+i+1];
+            row[i+3] = data[offset+i];
+         }
+      } else {
+         for(int i = 0; i < row.length; i += 3) {
+            row[i] = data[offset+i+2];
+            row[i+1] = data[offset+i+1];
+            row[i+2] = data[offset+i];
+         }
+      }
+   }
+
+   /**
+    * Applies all five PNG filters to a row and returns the one that leaves
+    * the smallest sum of absolute values, with its filter byte in front.
+    *
+    * @param previous The row above, all zero for the first row.
+    * @param scratch  Five arrays one byte longer than the row.
+    */
+   static byte[] filterRow(byte row[], byte previous[], int bpp,
+         byte scratch[][]) {
+      int best = FILTER_NONE;
+      long bestSum = Long.MAX_VALUE;
+      for(int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+         byte out[] = scratch[filter];
+         out[0] = (byte)filter;
+         long sum = 0;
+         for(int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i-bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bpp ? previous[i-bpp] & 0xff : 0;
+            int predicted;
+            switch(filter) {
+            case FILTER_SUB:     predicted = a; break;
+            case FILTER_UP:      predicted = b; break;
+            case FILTER_AVERAGE: predicted = (a + b) >>> 1; break;
+            case FILTER_PAETH:   predicted = paeth(a, b, c); break;
+            default:             predicted = 0; break;
+            }
+            byte value = (byte)(x - predicted);
+            out[i+1] = value;
+            sum += Math.abs((int)value);
+         }
+         if(sum < bestSum) {
+            bestSum = sum;
+            best = filter;
+         }
+      }
+      return scratch[best];
+   }
+
+   private static int paeth(int a, int b, int c) {
+      int p = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      if(pa <= pb && pa <= pc) {
+         return a;
+      }
+      return pb <= pc ? b : c;
+   }
+
+   private void writeChunk(String type, byte data[], int length)
+         throws IOException {
+      byte typeBytes[] = type.getBytes(StandardCharsets.US_ASCII);
+      CRC32 crc = new CRC32();
+      crc.update(typeBytes);
+      crc.update(data, 0, length);
+
+      ByteBuffer head = ByteBuffer.allocate(8);
+      head.putInt(length);
+      head.put(typeBytes);
+      head.flip();
+      ByteBuffer tail = ByteBuffer.allocate(4);
+      tail.putInt((int)crc.getValue());
+      tail.flip();
+      ByteBuffer body = ByteBuffer.wrap(data, 0, length);
+
+      ByteBuffer buffers[] = {head, body, tail};
+      while(tail.hasRemaining()) {
+         mChannel.write(buffers);
+      }
+   }
+
+   private void writeFully(ByteBuffer buffer) throws IOException {
+      while(buffer.hasRemaining()) {
+         mChannel.write(buffer);
+      }
+   }
+}
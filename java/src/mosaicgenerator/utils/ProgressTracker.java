@@ -0,0 +1,223 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Progress Tracker                             *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Keeps track of how far a long job has got, cheaply enough to be        *
+ * updated from the inner loops of worker threads. The job is split into     *
+ * stages, each with a number of steps and a weight. Workers only add to the *
+ * atomic step counter of a stage; nothing else happens until somebody       *
+ * looks. The user interface samples the tracker on a timer (TICK_MILLIS),   *
+ * so showing progress costs the same however many steps there are.         *
+ *                                                                           *
+ *    Stages may overlap, as matching and drawing do when a mosaic is        *
+ * streamed in bands. The overall fraction is the weighted sum of the        *
+ * fractions of all stages, and the time left is estimated from the rate    *
+ * at which that fraction grew over the recent samples.                      *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ProgressTracker {
+   /** How often the user interface samples a tracker, in milliseconds. */
+   public static final int TICK_MILLIS = 100;
+
+   // Weight of the newest sample in the smoothed rate.
+   private static final double SMOOTHING = 0.2;
+   // No estimate is given before the job has run this long.
+   private static final long SETTLE_NANOS = 1000000000L;
+
+   private final String mNames[];
+   private final double mWeights[];
+   private final double mTotalWeight;
+
+   private final AtomicLongArray mDone;
+   private final AtomicLongArray mTotals;
+   // System.nanoTime of the start and end of each stage, 0 if not yet.
+   private final AtomicLongArray mStarted;
+   private final AtomicLongArray mFinished;
+   private volatile int mCurrent;
+   private final long mCreated;
+
+   // Only used by the sampling thread.
+   private long mLastSample;
+   private double mLastFraction;
+   private double mRate;
+
+   /**
+    * @param names   Names of the stages, shown to the user.
+    * @param weights Share of the whole job each stage is expected to take.
+    */
+   public ProgressTracker(String names[], double weights[]) {
+      mNames = names.clone();
+      mWeights = weights.clone();
+      double total = 0;
+      for(double weight: weights) {
+         total += weight;
+      }
+      mTotalWeight = total;
+
+      mDone = new AtomicLongArray(names.length);
+      mTotals = new AtomicLongArray(names.length);
+      mStarted = new AtomicLongArray(names.length);
+      mFinished = new AtomicLongArray(names.length);
+      mCreated = System.nanoTime();
+      mLastSample = mCreated;
+   }
+
+   /* ********************************************************************** */
+   /*                                WORKERS                                 */
+   /* ********************************************************************** */
+
+   /**
+    * Starts a stage, or sets a new total for a stage that has already
+    * started. The stage becomes the one shown to the user.
+    *
+    * @param total Number of steps of the stage.
+    */
+   public void begin(int stage, long total) {
+      mTotals.set(stage, total);
+      mStarted.compareAndSet(stage, 0, System.nanoTime());
+      mCurrent = stage;
+      if(total <= 0) {
+         finish(stage);
+      }
+   }
+
+   /** Adds steps to a stage. Can be called from any thread. */
+   public void advance(int stage, long steps) {
+      if(mDone.addAndGet(stage, steps) >= mTotals.get(stage)) {
+         mFinished.compareAndSet(stage, 0, System.nanoTime());
+      }
+   }
+
+   /** Sets the steps done of a stage, for stages that count on their own. */
+   public void set(int stage, long done) {
+      mDone.set(stage, done);
+      if(done >= mTotals.get(stage)) {
+         mFinished.compareAndSet(stage, 0, System.nanoTime());
+      }
+   }
+
+   /** Marks a stage as done, including one that was skipped. */
+   public void finish(int stage) {
+      mDone.set(stage, Math.max(1, mTotals.get(stage)));
+      mTotals.compareAndSet(stage, 0, 1);
+      long now = System.nanoTime();
+      mStarted.compareAndSet(stage, 0, now);
+      mFinished.compareAndSet(stage, 0, now);
+   }
+
+   /* ********************************************************************** */
+   /*                               OBSERVERS                                */
+   /* ********************************************************************** */
+
+   /** @return How much of the whole job is done, from 0 to 1. */
+   public double fraction() {
+      double done = 0;
+      for(int stage = 0; stage < mNames.length; stage++) {
+         done += mWeights[stage]*stageFraction(stage);
+      }
+      return mTotalWeight > 0 ? Math.min(1.0, done/mTotalWeight) : 0.0;
+   }
+
+   /** @return How much of the job is done, from 0 to 100. */
+   public int percent() {
+      return (int)(100*fraction());
+   }
+
+   /** @return How much of a stage is done, from 0 to 1. */
+   public double stageFraction(int stage) {
+      long total = mTotals.get(stage);
+      if(total <= 0) {
+         return 0.0;
+      }
+      return Math.min(1.0, (double)mDone.get(stage)/total);
+   }
+
+   /** @return Name of the stage that was begun last. */
+   public String stageName() {
+      return mNames[mCurrent];
+   }
+
+   /**
+    * @return Time spent in a stage so far, in milliseconds. Overlapping
+    *         stages both count the time they share.
+    */
+   public long stageMillis(int stage) {
+      long started = mStarted.get(stage);
+      if(started == 0) {
+         return 0;
+      }
+      long finished = mFinished.get(stage);
+      return ((finished != 0 ? finished : System.nanoTime()) - started)
+            /1000000;
+   }
+
+   /**
+    * Takes a sample of the fraction done, to estimate the rate of the job.
+    * Called on every tick of the user interface's timer.
+    */
+   public synchronized void sample() {
+      long now = System.nanoTime();
+      if(now - mLastSample < TICK_MILLIS*500000L) {
+         return;
+      }
+      double fraction = fraction();
+      double rate = (fraction - mLastFraction)/(now - mLastSample);
+      mRate = mRate == 0 ? rate : mRate + SMOOTHING*(rate - mRate);
+      mLastSample = now;
+      mLastFraction = fraction;
+   }
+
+   /**
+    * @return Estimated time left in milliseconds, or -1 while there is not
+    *         enough to go on.
+    */
+   public synchronized long remainingMillis() {
+      long elapsed = System.nanoTime() - mCreated;
+      double fraction = fraction();
+      double rate = mRate > 0 ? mRate : fraction/elapsed;
+      if(elapsed < SETTLE_NANOS || rate <= 0) {
+         return -1;
+      }
+      return (long)((1.0 - fraction)/rate/1000000);
+   }
+
+   /**
+    * @return The current stage, the percentage done and the time left, to
+    *         be shown to the user.
+    */
+   public String describe() {
+      String text = stageName() + " " + percent() + "%";
+      long remaining = remainingMillis();
+      if(remaining >= 0) {
+         long seconds = (remaining + 999)/1000;
+         text += String.format(", %d:%02d left", seconds/60, seconds%60);
+      }
+      return text;
+   }
+
+   /**
+    * @return Time spent in each stage that has started, such as
+    *         "Matching 2.1 s, Drawing 0.3 s".
+    */
+   public String breakdown() {
+      StringBuilder text = new StringBuilder();
+      for(int stage = 0; stage < mNames.length; stage++) {
+         if(mStarted.get(stage) == 0) {
+            continue;
+         }
+         if(text.length() > 0) {
+            text.append(", ");
+         }
+         text.append(String.format("%s %.1f s", mNames[stage],
+               stageMillis(stage)/1000.0));
+      }
+      return text.toString();
+   }
+}
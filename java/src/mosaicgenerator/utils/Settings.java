@@ -1,5 +1,7 @@
 package mosaicgenerator.utils;
 
+import java.io.File;
+
 public class Settings {
    public int cellWidth;
    public int cellHeight;
@@ -8,4 +10,78 @@ public class Settings {
    
    public boolean reuseTiles;
    public int reusePenalty;
+   public int repeatDistance;
+   public int tileUses;
+   public int assignmentCandidates;
+   
+   public int cachedCandidates;
+   public long candidateHeapBytes;
+   
+   public boolean parallelSelection;
+   public int selectionThreads;
+   public int selectionPassSize;
+   
+   public boolean useTileIndex;
+   public int indexCandidates;
+   public boolean vectorKernels;
+   
+   public File libraryFile;
+   
+   public int decodeThreads;
+   public int decodeQueueSize;
+   
+   public boolean lazyTiles;
+   public long tileCacheBytes;
+   
+   public long streamingPixels;
+   public int streamingBandRows;
+   public int compressionLevel;
+   public int compressionThreads;
+   
+   public boolean progressivePreview;
+   
+   public int batchJobs;
+   
+   public int pyramidTileSize;
+   public String pyramidFormat;
+   
+   public File metricsFile;
+   
+   /**
+    * @return The settings the application starts with.
+    */
+   public static Settings defaults() {
+      Settings settings = new Settings();
+      settings.cellWidth = settings.cellHeight = 15;
+      settings.tileWidth = settings.tileHeight = 150;
+      settings.reuseTiles = true;
+      settings.reusePenalty = 15;
+      settings.repeatDistance = 0;
+      settings.tileUses = 1;
+      settings.assignmentCandidates = 16;
+      settings.cachedCandidates = 16;
+      settings.candidateHeapBytes = 64L*1024*1024;
+      settings.parallelSelection = false;
+      settings.selectionThreads = 0;
+      settings.selectionPassSize = 64;
+      settings.useTileIndex = true;
+      settings.indexCandidates = 0;
+      settings.vectorKernels = false;
+      settings.decodeThreads = 0;
+      settings.decodeQueueSize = 0;
+      settings.lazyTiles = false;
+      settings.tileCacheBytes = 256L*1024*1024;
+      settings.streamingPixels = 200000000L;
+      settings.streamingBandRows = 4;
+      settings.compressionLevel = 6;
+      settings.compressionThreads = 0;
+      settings.progressivePreview = true;
+      settings.batchJobs = 2;
+      settings.pyramidTileSize = 256;
+      settings.pyramidFormat = "jpg";
+      settings.metricsFile = null;
+      settings.libraryFile = new File(System.getProperty("user.home"),
+            ".mosaicgenerator" + File.separator + "tiles.lib");
+      return settings;
+   }
 }
@@ -0,0 +1,504 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                              Tile Assignment                              *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Assigns tiles to cells so that no tile is used more than a given       *
+ * number of times and the summed mismatch is as low as possible. Unlike     *
+ * the reuse penalty of the cell-by-cell selection, the result does not      *
+ * depend on the order the cells are visited in.                             *
+ *                                                                           *
+ *    A dense cost matrix is out of the question for tens of thousands of    *
+ * cells and tiles, so every cell only brings its k best tiles as            *
+ * candidates. The assignment over these sparse edges is found with the      *
+ * auction algorithm: each tile has as many slots as it may be used, every   *
+ * slot has a price, and unassigned cells bid for the slot that costs them   *
+ * least, mismatch plus price, raising its price by how much better it is    *
+ * than their second choice. Costs are scaled by PRECISION, so with a final  *
+ * bid increment of 1 the summed mismatch is within one PRECISION'th per     *
+ * cell of the best over the candidates. Scaling by the number of cells      *
+ * plus one would make it optimal, but cells with the same candidates then   *
+ * bid each other up by 1 per round over the whole range of the costs. The   *
+ * increment starts large and shrinks by a constant factor (epsilon          *
+ * scaling), which keeps the number of rounds low.                           *
+ *                                                                           *
+ *    There are usually more slots than cells, and slots left free by a      *
+ * phase may still be priced from an earlier one, which would keep cells     *
+ * away from them. A reverse auction therefore follows every phase: free     *
+ * slots above the lowest price of a taken slot bid for cells by lowering    *
+ * their price, until none is left above it.                                 *
+ *                                                                           *
+ *    The bids of a round are worked out in parallel from the prices of the  *
+ * previous round and then resolved tile by tile in cell order (Jacobi       *
+ * bidding), so the result is the same for any number of threads.            *
+ *                                                                           *
+ *    When the candidates of some cells are all in demand, the cells could   *
+ * push prices up forever. Every cell therefore has a way out, at a cost     *
+ * just above its worst candidate: the tiles that did not make its list are  *
+ * at least that bad. Cells that take it are left without a tile, for the    *
+ * caller to give them the best tiles that still have a free slot.           *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+public class TileAssignment {
+   /** Tile of a cell that gave up, in the result of solve. */
+   public static final int NONE = -1;
+
+   // Mismatches are multiplied by this, so bids can be finer than one.
+   private static final long PRECISION = 8;
+   // Bid increment is divided by this after every phase.
+   private static final int SCALING = 5;
+   // Below this many bidders a round is worked out on the calling thread.
+   private static final int PARALLEL_BIDDERS = 2048;
+
+   private final int mCells;
+   private final int mTiles;
+   private final int mUses;
+   private final int mK;
+
+   // Candidates of cell i are at i*k, best first; mCounts[i] of them are set.
+   private final int mCandidates[];
+   private final int mMismatches[];
+   private final int mCounts[];
+
+   private long mScale;
+
+   // Candidate offsets of the cells that have a tile as candidate, tile by
+   // tile in cell order. Tile t's are at mEdgeStarts[t] to mEdgeStarts[t+1].
+   private int mEdgeStarts[];
+   private int mEdges[];
+
+   // Per slot, tile t owning slots t*uses to t*uses + uses - 1.
+   private long mPrices[];
+   private int mOwners[];
+   // The slots of each tile, cheapest first.
+   private int mOrder[];
+   // Per cell.
+   private int mSlots[];
+   private boolean mGaveUp[];
+   private int mBidSlots[];
+   private long mBidPrices[];
+
+   private long mRounds;
+   private long mCost;
+
+   /**
+    * @param cells      Number of cells.
+    * @param tiles      Number of tiles.
+    * @param uses       Times each tile may be used. Raised if there are
+    *                   too few tiles to fill every cell.
+    * @param candidates Number of candidate tiles per cell.
+    */
+   public TileAssignment(int cells, int tiles, int uses, int candidates) {
+      mCells = cells;
+      mTiles = tiles;
+      mUses = Math.max(Math.max(1, uses), (cells + tiles - 1)/tiles);
+      mK = Math.max(1, Math.min(candidates, tiles));
+      mCandidates = new int[cells*mK];
+      mMismatches = new int[cells*mK];
+      mCounts = new int[cells];
+   }
+
+   /** @return Number of candidates kept per cell. */
+   public int candidatesPerCell() {
+      return mK;
+   }
+
+   /** @return Times each tile may be used. */
+   public int uses() {
+      return mUses;
+   }
+
+   /**
+    * Sets the candidates of a cell. Different cells can be set from
+    * different threads.
+    *
+    * @param tiles      Candidate tiles, best first.
+    * @param mismatches Their mismatches with the cell.
+    */
+   public void setCandidates(int cell, int tiles[], int mismatches[],
+         int count) {
+      count = Math.min(count, mK);
+      System.arraycopy(tiles, 0, mCandidates, cell*mK, count);
+      System.arraycopy(mismatches, 0, mMismatches, cell*mK, count);
+      mCounts[cell] = count;
+   }
+
+   /**
+    * Finds the assignment.
+    *
+    * @param pool      Pool to work out the bids on, or null for the
+    *                  calling thread.
+    * @param cancelled Polled between rounds.
+    * @return The tile of every cell, NONE for the cells that gave up, or
+    *         null if cancelled.
+    */
+   public int[] solve(ForkJoinPool pool, BooleanSupplier cancelled) {
+      int maxMismatch = 0;
+      for(int cell = 0; cell < mCells; cell++) {
+         for(int c = 0; c < mCounts[cell]; c++) {
+            maxMismatch = Math.max(maxMismatch, mMismatches[cell*mK + c]);
+         }
+      }
+      mRounds = 0;
+      mScale = Math.min(mCells + 1L, PRECISION);
+
+      mPrices = new long[mTiles*mUses];
+      mOrder = new int[mPrices.length];
+      for(int slot = 0; slot < mOrder.length; slot++) {
+         mOrder[slot] = slot;
+      }
+      mOwners = new int[mPrices.length];
+      mSlots = new int[mCells];
+      mGaveUp = new boolean[mCells];
+      mBidSlots = new int[mCells];
+      mBidPrices = new long[mCells];
+
+      long epsilon = Math.max(1, (maxMismatch + 1L)*mScale/4);
+      findEdges();
+      while(true) {
+         if(!auction(epsilon, pool, cancelled)) {
+            return null;
+         }
+         lowerFreePrices(epsilon);
+         if(epsilon == 1) {
+            break;
+         }
+         epsilon = Math.max(1, epsilon/SCALING);
+      }
+      return finish();
+   }
+
+   /** @return Number of bidding rounds of the last solve. */
+   public long rounds() {
+      return mRounds;
+   }
+
+   /**
+    * @return Summed mismatch of the last assignment, leaving out the cells
+    *         that gave up.
+    */
+   public long cost() {
+      return mCost;
+   }
+
+   /**
+    * Runs one phase of the auction: all cells start unassigned and bid
+    * until every cell holds a slot or has given up. The prices are kept.
+    */
+   private boolean auction(long epsilon, ForkJoinPool pool,
+         BooleanSupplier cancelled) {
+      Arrays.fill(mOwners, NONE);
+      Arrays.fill(mSlots, NONE);
+      Arrays.fill(mGaveUp, false);
+
+      int bidders[] = new int[mCells];
+      for(int cell = 0; cell < mCells; cell++) {
+         bidders[cell] = cell;
+      }
+      int count = mCells;
+
+      while(count > 0) {
+         if(cancelled.getAsBoolean()) {
+            return false;
+         }
+         mRounds++;
+
+         if(pool != null && count >= PARALLEL_BIDDERS) {
+            pool.invoke(new BidTask(bidders, 0, count, epsilon));
+         } else {
+            for(int i = 0; i < count; i++) {
+               bid(bidders[i], epsilon);
+            }
+         }
+
+         // A cell bids for a tile rather than for one of its slots, so the
+         // bids are grouped by tile, in cell order within a tile.
+         long keys[] = new long[count];
+         int bids = 0;
+         for(int i = 0; i < count; i++) {
+            int cell = bidders[i];
+            if(mBidSlots[cell] == NONE) {
+               mGaveUp[cell] = true;
+            } else {
+               keys[bids++] = (long)(mBidSlots[cell]/mUses) << 32 | cell;
+            }
+         }
+         Arrays.sort(keys, 0, bids);
+
+         // Cells that lose their slots bid again in the next round, along
+         // with the cells whose bids failed.
+         int next[] = new int[count + bids];
+         int nextCount = 0;
+         for(int first = 0, last; first < bids; first = last) {
+            int tile = (int)(keys[first] >>> 32);
+            for(last = first + 1; last < bids; last++) {
+               if((int)(keys[last] >>> 32) != tile) {
+                  break;
+               }
+            }
+            nextCount = award(tile, keys, first, last, next, nextCount);
+         }
+         bidders = next;
+         count = nextCount;
+         Arrays.sort(bidders, 0, count);
+      }
+      return true;
+   }
+
+   /**
+    * Resolves the bids for a tile. The highest bids, the earlier cell on a
+    * tie, take the cheapest slots of the tile as long as they beat their
+    * prices. The slots of a tile are all the same to a cell, so it does not
+    * matter which one it gets.
+    *
+    * @return The new number of cells in next.
+    */
+   private int award(int tile, long keys[], int first, int last, int next[],
+         int nextCount) {
+      Integer cells[] = new Integer[last - first];
+      for(int i = 0; i < cells.length; i++) {
+         cells[i] = (int)keys[first + i];
+      }
+      Arrays.sort(cells, (a, b) -> Long.compare(mBidPrices[b], mBidPrices[a]));
+      int base = tile*mUses;
+
+      int i = 0;
+      for(; i < cells.length && i < mUses; i++) {
+         int cell = cells[i], slot = mOrder[base + i];
+         if(mBidPrices[cell] <= mPrices[slot]) {
+            break;
+         }
+         int owner = mOwners[slot];
+         if(owner != NONE) {
+            mSlots[owner] = NONE;
+            next[nextCount++] = owner;
+         }
+         mOwners[slot] = cell;
+         mSlots[cell] = slot;
+         mPrices[slot] = mBidPrices[cell];
+      }
+      int won = i;
+      for(; i < cells.length; i++) {
+         next[nextCount++] = cells[i];
+      }
+
+      // The prices of the slots that were taken went up, in the reverse
+      // order of the bids, so the order is restored by merging.
+      if(won > 0 && mUses > 1) {
+         int merged[] = new int[mUses];
+         int taken = won - 1, kept = base + won, end = base + mUses;
+         for(int k = 0; k < mUses; k++) {
+            if(kept == end || (taken >= 0
+                  && mPrices[mOrder[base + taken]] <= mPrices[mOrder[kept]])) {
+               merged[k] = mOrder[base + taken--];
+            } else {
+               merged[k] = mOrder[kept++];
+            }
+         }
+         System.arraycopy(merged, 0, mOrder, base, mUses);
+      }
+      return nextCount;
+   }
+
+   /**
+    * Works out the bid of a cell: the slot that costs it least and the
+    * price it offers, or no slot if giving up is cheaper.
+    */
+   private void bid(int cell, long epsilon) {
+      int offset = cell*mK;
+      long best = giveUpCost(cell);
+      long second = best;
+      int bestSlot = NONE;
+      for(int c = 0; c < mCounts[cell]; c++) {
+         int tile = mCandidates[offset + c];
+         long cost = mMismatches[offset + c]*mScale;
+
+         // Only the cheapest slot of a tile counts. Taking the second
+         // choice from the same tile would set off a price war between
+         // slots that are all the same to the cell.
+         int cheapest = mOrder[tile*mUses];
+         long value = cost + mPrices[cheapest];
+         if(value < best) {
+            second = best;
+            best = value;
+            bestSlot = cheapest;
+         } else if(value < second) {
+            second = value;
+         }
+      }
+
+      mBidSlots[cell] = bestSlot;
+      mBidPrices[cell] = bestSlot == NONE ?
+            0 : mPrices[bestSlot] + (second - best) + epsilon;
+   }
+
+   /** @return What giving up costs a cell, just above its worst candidate. */
+   private long giveUpCost(int cell) {
+      return mCounts[cell] > 0 ?
+            (mMismatches[cell*mK + mCounts[cell] - 1] + 1L)*mScale : 0;
+   }
+
+   private class BidTask extends RecursiveAction {
+      private final int mBidders[];
+      private final int mStart, mEnd;
+      private final long mEpsilon;
+
+      BidTask(int bidders[], int start, int end, long epsilon) {
+         mBidders = bidders;
+         mStart = start;
+         mEnd = end;
+         mEpsilon = epsilon;
+      }
+
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= 256) {
+            for(int i = mStart; i < mEnd; i++) {
+               bid(mBidders[i], mEpsilon);
+            }
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new BidTask(mBidders, mStart, mid, mEpsilon),
+                      new BidTask(mBidders, mid, mEnd, mEpsilon));
+         }
+      }
+   }
+
+   /**
+    * Runs the reverse auction after a phase. A free slot priced above the
+    * lowest price of a taken slot takes the cell that gains most from
+    * moving to it, at a price the increment below what the next best cell
+    * would have gained, or drops its price to the lowest price if no cell
+    * gains more than the increment. Giving up counts as a slot that costs
+    * nothing, so once a cell has given up, the lowest price is 0.
+    */
+   private void lowerFreePrices(long epsilon) {
+      long lowest = Long.MAX_VALUE;
+      for(int slot = 0; slot < mPrices.length; slot++) {
+         if(mOwners[slot] != NONE) {
+            lowest = Math.min(lowest, mPrices[slot]);
+         }
+      }
+
+      // What the cells pay for their slots, mismatch plus price, or for
+      // giving up.
+      long values[] = new long[mCells];
+      for(int cell = 0; cell < mCells; cell++) {
+         int slot = mSlots[cell];
+         if(slot != NONE) {
+            values[cell] = mismatch(cell, slot/mUses)*mScale + mPrices[slot];
+         } else {
+            values[cell] = giveUpCost(cell);
+            lowest = 0;
+         }
+      }
+      if(lowest == Long.MAX_VALUE) {
+         return;
+      }
+
+      ArrayDeque<Integer> free = new ArrayDeque<>();
+      for(int slot = 0; slot < mPrices.length; slot++) {
+         if(mOwners[slot] == NONE && mPrices[slot] > lowest) {
+            free.add(slot);
+         }
+      }
+      while(!free.isEmpty()) {
+         int slot = free.poll();
+         int tile = slot/mUses;
+
+         long best = Long.MIN_VALUE, second = Long.MIN_VALUE;
+         int bestEdge = NONE;
+         for(int e = mEdgeStarts[tile]; e < mEdgeStarts[tile + 1]; e++) {
+            int edge = mEdges[e];
+            int holder = mSlots[edge/mK];
+            if(holder != NONE && holder/mUses == tile) {
+               // Moving to another slot of the same tile changes nothing.
+               continue;
+            }
+            long gain = values[edge/mK] - mMismatches[edge]*mScale;
+            if(gain > best) {
+               second = best;
+               best = gain;
+               bestEdge = edge;
+            } else if(gain > second) {
+               second = gain;
+            }
+         }
+         if(bestEdge == NONE || best - epsilon <= lowest) {
+            mPrices[slot] = lowest;
+            continue;
+         }
+
+         int cell = bestEdge/mK;
+         int previous = mSlots[cell];
+         if(previous != NONE) {
+            mOwners[previous] = NONE;
+            if(mPrices[previous] > lowest) {
+               free.add(previous);
+            }
+         }
+         mPrices[slot] = second == Long.MIN_VALUE ?
+               lowest : Math.max(lowest, second - epsilon);
+         mOwners[slot] = cell;
+         mSlots[cell] = slot;
+         mGaveUp[cell] = false;
+         values[cell] = mMismatches[bestEdge]*mScale + mPrices[slot];
+      }
+   }
+
+   private void findEdges() {
+      mEdgeStarts = new int[mTiles + 1];
+      for(int cell = 0; cell < mCells; cell++) {
+         for(int c = 0; c < mCounts[cell]; c++) {
+            mEdgeStarts[mCandidates[cell*mK + c] + 1]++;
+         }
+      }
+      for(int tile = 0; tile < mTiles; tile++) {
+         mEdgeStarts[tile + 1] += mEdgeStarts[tile];
+      }
+      int next[] = Arrays.copyOf(mEdgeStarts, mTiles);
+      mEdges = new int[mEdgeStarts[mTiles]];
+      for(int cell = 0; cell < mCells; cell++) {
+         for(int c = 0; c < mCounts[cell]; c++) {
+            int edge = cell*mK + c;
+            mEdges[next[mCandidates[edge]]++] = edge;
+         }
+      }
+   }
+
+   /** Turns slots into tiles. */
+   private int[] finish() {
+      int assigned[] = new int[mCells];
+      mCost = 0;
+      for(int cell = 0; cell < mCells; cell++) {
+         if(mSlots[cell] == NONE) {
+            assigned[cell] = NONE;
+         } else {
+            int tile = mSlots[cell]/mUses;
+            assigned[cell] = tile;
+            mCost += mismatch(cell, tile);
+         }
+      }
+      return assigned;
+   }
+
+   private int mismatch(int cell, int tile) {
+      int offset = cell*mK;
+      for(int c = 0; c < mCounts[cell]; c++) {
+         if(mCandidates[offset + c] == tile) {
+            return mMismatches[offset + c];
+         }
+      }
+      return 0;
+   }
+}
@@ -0,0 +1,463 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                                Tile Catalog                               *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Everything MosaicMaker needs to know about the tiles, stored as        *
+ * parallel arrays indexed by tile number. The cell-sized rasters of all     *
+ * tiles are packed back to back into one byte array and their signatures    *
+ * into one float array, so matching walks memory linearly instead of        *
+ * chasing list nodes and raster objects. An array holds at most 2 GB, which *
+ * caps the number of tiles of a given cell size; a catalog that would need  *
+ * more is refused.                                                          *
+ *                                                                           *
+ *    When the files of the tiles and a TileLibrary are given, prepared      *
+ * tiles are read from the library and newly prepared ones are added to it.  *
+ *                                                                           *
+ *    In lazy mode only the matching data stays in memory. The tile-size     *
+ * renditions are dropped once a tile is prepared and made again when the    *
+ * mosaic is drawn, from the library or from the tile's file, and only the   *
+ * most recently used ones are kept, up to a number of bytes. They are not   *
+ * added to the library either, only the cell rasters and signatures are.    *
+ *                                                                           *
+ *    A catalog only depends on the tile images and the cell and tile sizes, *
+ * so it can be handed to the next run as long as those did not change. Use  *
+ * counts are kept by each run in an array parallel to the catalog. Once     *
+ * prepared, a catalog and its index are only read, so several runs can      *
+ * share them at the same time.                                              *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TileCatalog {
+   // Largest array most virtual machines will allocate.
+   private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+   
+   private BufferedImage mSources[];
+   private File mFiles[];
+   private TileLibrary mLibrary;
+   private Dimension mCellSize;
+   private Dimension mTileSize;
+   private int mCellType;
+
+   private boolean mAlpha;
+   private int mPixelStride;
+   private int mTileBytes;
+
+   private byte mPixels[];
+   private float mSignatures[];
+   private BufferedImage mScaled[];
+   private boolean mPrepared[];
+   private boolean mAllPrepared;
+   private TileIndex mIndex;
+   private LongAdder mScaledCount;
+   private LongAdder mLoadedCount;
+   
+   private TileDecoder mDecoder;
+   private ScaledCache mCache;
+
+   /**
+    * Sets up an empty catalog. The tiles still need to be prepared before
+    * they can be matched.
+    *
+    * @param tiles    Images to be used as tiles.
+    * @param cellSize Size of the cells the tiles are compared with.
+    * @param tileSize Size of the tiles in the final mosaic.
+    * @param cellType Image type of the cells.
+    */
+   public TileCatalog(List<BufferedImage> tiles, Dimension cellSize,
+         Dimension tileSize, int cellType) {
+      this(tiles, null, null, cellSize, tileSize, cellType);
+   }
+   
+   /**
+    * Sets up an empty catalog backed by a tile library.
+    *
+    * @param files   Files the tiles were loaded from, in the same order as
+    *                the tiles. May be null.
+    * @param library Library prepared tiles are read from and written to.
+    *                May be null.
+    */
+   public TileCatalog(List<BufferedImage> tiles, List<File> files, 
+         TileLibrary library, Dimension cellSize, Dimension tileSize, 
+         int cellType) {
+      mSources = tiles.toArray(new BufferedImage[tiles.size()]);
+      if(files != null && files.size() == tiles.size()) {
+         mFiles = files.toArray(new File[files.size()]);
+         mLibrary = library;
+      }
+      mCellSize = new Dimension(cellSize);
+      mTileSize = new Dimension(tileSize);
+      mCellType = cellType;
+
+      BufferedImage probe = new BufferedImage(
+            cellSize.width, cellSize.height, cellType);
+      mAlpha = probe.getAlphaRaster() != null;
+      mTileBytes = getData(probe).length;
+      mPixelStride = mTileBytes/(cellSize.width*cellSize.height);
+
+      int count = mSources.length;
+      long bytes = (long)count*mTileBytes;
+      if(bytes > MAX_ARRAY_LENGTH 
+            || (long)count*TileIndex.SIGNATURE_LENGTH > MAX_ARRAY_LENGTH) {
+         throw new IllegalArgumentException(count + " tiles of " 
+               + cellSize.width + "x" + cellSize.height + " pixels do not "
+               + "fit in one catalog. Use fewer tiles or smaller cells.");
+      }
+      mPixels = new byte[(int)bytes];
+      mSignatures = new float[count*TileIndex.SIGNATURE_LENGTH];
+      mScaled = new BufferedImage[count];
+      mPrepared = new boolean[count];
+      mScaledCount = new LongAdder();
+      mLoadedCount = new LongAdder();
+   }
+
+   /**
+    * Keeps only the matching data of the tiles in memory. Must be called
+    * before any tile is prepared.
+    *
+    * @param cacheBytes Number of bytes of tile-size renditions to keep.
+    */
+   public void setLazy(long cacheBytes) {
+      mCache = new ScaledCache(cacheBytes);
+      mDecoder = new TileDecoder(mLibrary, 
+            Math.max(mTileSize.width, mTileSize.height));
+   }
+   
+   public boolean isLazy() {
+      return mCache != null;
+   }
+   
+   /**
+    * Prepares every tile that is not prepared yet. Runs that share the 
+    * catalog wait here until the first one is done.
+    * 
+    * @param pool Pool to prepare the tiles on, or null to prepare them on
+    *             the calling thread.
+    */
+   public void prepareAll(ForkJoinPool pool) {
+      prepareAll(pool, null, 0);
+   }
+   
+   /**
+    * Prepares every tile that is not prepared yet, adding a step to a 
+    * stage of the progress for every tile.
+    * 
+    * @param progress Progress of the run, may be null.
+    */
+   public synchronized void prepareAll(ForkJoinPool pool, 
+         ProgressTracker progress, int stage) {
+      if(mAllPrepared) {
+         return;
+      }
+      if(pool != null) {
+         pool.invoke(new PrepareTask(0, size(), progress, stage));
+      } else {
+         for(int tile = 0; tile < size(); tile++) {
+            prepare(tile);
+            if(progress != null) {
+               progress.advance(stage, 1);
+            }
+         }
+      }
+      mAllPrepared = true;
+   }
+   
+   /**
+    * @return The tile index over the signatures, built the first time it
+    *         is asked for. All tiles must be prepared by then.
+    */
+   public synchronized TileIndex index() {
+      if(mIndex == null) {
+         mIndex = new TileIndex(mSignatures, size());
+      }
+      return mIndex;
+   }
+   
+   /**
+    * Scales a tile and stores its cell-sized raster and signature. Tiles
+    * that are already prepared are skipped. Different tiles can be prepared
+    * from different threads.
+    */
+   public void prepare(int tile) {
+      if(mPrepared[tile]) {
+         return;
+      }
+      if(load(tile)) {
+         mLoadedCount.increment();
+         return;
+      }
+
+      BufferedImage scaled = ProgressiveBilinear.progressiveScale(
+            source(tile), mTileSize.width, mTileSize.height);
+      BufferedImage cellSized = new BufferedImage(
+            mCellSize.width, mCellSize.height, mCellType);
+      Graphics2D g2 = cellSized.createGraphics();
+      g2.drawImage(scaled, 0, 0,
+            cellSized.getWidth(),
+            cellSized.getHeight(),
+            null);
+      g2.dispose();
+
+      int offset = offset(tile);
+      System.arraycopy(getData(cellSized), 0, mPixels, offset, mTileBytes);
+      TileIndex.signature(mPixels, offset, mCellSize.width*mPixelStride,
+            mCellSize.width, mCellSize.height, mPixelStride, mAlpha ? 1 : 0,
+            mSignatures, tile*TileIndex.SIGNATURE_LENGTH);
+      store(tile, scaled);
+      if(!isLazy()) {
+         mScaled[tile] = scaled;
+      }
+      mPrepared[tile] = true;
+      mScaledCount.increment();
+   }
+   
+   /** @return Number of tiles scaled by this catalog so far. */
+   public long tilesScaled() {
+      return mScaledCount.sum();
+   }
+   
+   /** @return Number of tiles read from the tile library so far. */
+   public long tilesLoaded() {
+      return mLoadedCount.sum();
+   }
+   
+   /**
+    * @return The image the tile is made from. In lazy mode the catalog
+    *         only holds a preview, so the tile's file is decoded again.
+    */
+   private BufferedImage source(int tile) {
+      if(isLazy() && mFiles != null) {
+         try {
+            return mDecoder.thumbnail(mFiles[tile]);
+         } catch(IOException ex) {
+            System.out.println("Tile " + mFiles[tile] + " failed to load.");
+         }
+      }
+      return mSources[tile];
+   }
+   
+   private boolean load(int tile) {
+      if(mLibrary == null || mFiles == null) {
+         return false;
+      }
+      
+      File file = mFiles[tile];
+      ByteBuffer pixels = mLibrary.read(file, 
+            TileLibrary.cellKey(mCellSize, mCellType));
+      ByteBuffer signature = mLibrary.read(file, 
+            TileLibrary.signatureKey(mCellSize, mCellType));
+      BufferedImage scaled = isLazy() ? null : mLibrary.readImage(file, 
+            TileLibrary.tileKey(mTileSize));
+      if(pixels == null || signature == null 
+            || (scaled == null && !isLazy())
+            || pixels.remaining() != mTileBytes
+            || signature.remaining() != TileIndex.SIGNATURE_LENGTH*4) {
+         return false;
+      }
+      
+      pixels.get(mPixels, offset(tile), mTileBytes);
+      signature.asFloatBuffer().get(mSignatures, 
+            tile*TileIndex.SIGNATURE_LENGTH, TileIndex.SIGNATURE_LENGTH);
+      mScaled[tile] = scaled;
+      mPrepared[tile] = true;
+      return true;
+   }
+   
+   private void store(int tile, BufferedImage scaled) {
+      if(mLibrary == null || mFiles == null) {
+         return;
+      }
+      
+      File file = mFiles[tile];
+      byte pixels[] = new byte[mTileBytes];
+      System.arraycopy(mPixels, offset(tile), pixels, 0, mTileBytes);
+      ByteBuffer signature = ByteBuffer.allocate(
+            TileIndex.SIGNATURE_LENGTH*4);
+      signature.asFloatBuffer().put(mSignatures, 
+            tile*TileIndex.SIGNATURE_LENGTH, TileIndex.SIGNATURE_LENGTH);
+      
+      mLibrary.write(file, TileLibrary.cellKey(mCellSize, mCellType), pixels);
+      mLibrary.write(file, TileLibrary.signatureKey(mCellSize, mCellType), 
+            signature.array());
+      if(!isLazy()) {
+         mLibrary.writeImage(file, TileLibrary.tileKey(mTileSize), scaled);
+      }
+   }
+   
+   /**
+    * Writes the tiles prepared since the last call to the tile library.
+    */
+   public void saveLibrary() throws IOException {
+      if(mLibrary != null) {
+         mLibrary.save();
+      }
+   }
+
+   /**
+    * @return Whether the catalog was made from exactly these images (the
+    *         same objects, in the same order) and sizes.
+    */
+   public boolean isBuiltFrom(List<BufferedImage> tiles, Dimension cellSize,
+         Dimension tileSize, int cellType) {
+      if(tiles.size() != mSources.length || !mCellSize.equals(cellSize)
+            || !mTileSize.equals(tileSize) || mCellType != cellType) {
+         return false;
+      }
+      Iterator<BufferedImage> it = tiles.iterator();
+      for(BufferedImage source: mSources) {
+         if(it.next() != source) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   public int size() {
+      return mSources.length;
+   }
+
+   public boolean hasAlpha() {
+      return mAlpha;
+   }
+
+   public int pixelStride() {
+      return mPixelStride;
+   }
+
+   /** @return The packed cell-sized rasters of all tiles. */
+   public byte[] pixels() {
+      return mPixels;
+   }
+
+   /** @return Number of bytes of one cell-sized raster. */
+   public int tileBytes() {
+      return mTileBytes;
+   }
+
+   /** @return Offset of a tile's raster in {@link #pixels()}. */
+   public int offset(int tile) {
+      return tile*mTileBytes;
+   }
+
+   /** @return The packed signatures of all tiles. */
+   public float[] signatures() {
+      return mSignatures;
+   }
+
+   /** @return The tile scaled to the tile size. */
+   public BufferedImage scaled(int tile) {
+      if(!isLazy()) {
+         return mScaled[tile];
+      }
+      
+      BufferedImage scaled = mCache.get(tile);
+      if(scaled == null) {
+         if(mLibrary != null && mFiles != null) {
+            scaled = mLibrary.readImage(mFiles[tile], 
+                  TileLibrary.tileKey(mTileSize));
+         }
+         if(scaled == null) {
+            scaled = ProgressiveBilinear.progressiveScale(
+                  source(tile), mTileSize.width, mTileSize.height);
+         }
+         mCache.put(tile, scaled);
+      }
+      return scaled;
+   }
+
+   /**
+    * Prepares a range of tiles, splitting it across the pool.
+    */
+   private class PrepareTask extends RecursiveAction {
+      private final int mStart, mEnd;
+      private final ProgressTracker mProgress;
+      private final int mStage;
+      
+      PrepareTask(int start, int end, ProgressTracker progress, int stage) {
+         mStart = start;
+         mEnd = end;
+         mProgress = progress;
+         mStage = stage;
+      }
+      
+      @Override
+      protected void compute() {
+         if(mEnd - mStart <= 16) {
+            for(int i = mStart; i < mEnd; i++) {
+               prepare(i);
+            }
+            if(mProgress != null) {
+               mProgress.advance(mStage, mEnd - mStart);
+            }
+         } else {
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new PrepareTask(mStart, mid, mProgress, mStage),
+                      new PrepareTask(mid, mEnd, mProgress, mStage));
+         }
+      }
+   }
+   
+   private static byte[] getData(BufferedImage img) {
+      return ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+   }
+
+   /**
+    * Least recently used tile-size renditions, up to a number of bytes.
+    */
+   private static class ScaledCache 
+         extends LinkedHashMap<Integer, BufferedImage> {
+      private final long mMaxBytes;
+      private long mBytes;
+      
+      ScaledCache(long maxBytes) {
+         super(16, 0.75f, true);
+         mMaxBytes = maxBytes;
+      }
+      
+      synchronized BufferedImage get(int tile) {
+         return super.get(tile);
+      }
+      
+      synchronized void put(int tile, BufferedImage scaled) {
+         // Counted first, so that the eldest entry goes right away.
+         mBytes += bytes(scaled);
+         BufferedImage old = super.put(tile, scaled);
+         if(old != null) {
+            mBytes -= bytes(old);
+         }
+      }
+      
+      @Override
+      protected boolean removeEldestEntry(
+            Map.Entry<Integer, BufferedImage> eldest) {
+         if(mBytes > mMaxBytes && size() > 1) {
+            mBytes -= bytes(eldest.getValue());
+            return true;
+         }
+         return false;
+      }
+      
+      private static long bytes(BufferedImage image) {
+         return (long)image.getWidth()*image.getHeight()
+               *image.getColorModel().getPixelSize()/8;
+      }
+   }
+}
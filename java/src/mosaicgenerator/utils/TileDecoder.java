@@ -0,0 +1,125 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                                Tile Decoder                               *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    Turns an image file into the thumbnail that tiles are made from.       *
+ *                                                                           *
+ *    Large photos are not decoded at full size. An embedded thumbnail is    *
+ * used when it is big enough, otherwise the file is decoded with source     *
+ * subsampling, at the smallest resolution that still covers the thumbnail   *
+ * and tile sizes. Thumbnails are kept in the tile library if there is one,  *
+ * so each file is only decoded once.                                        *
+ *                                                                           *
+ *    With lazy tiles only a small preview is kept in memory; the tiles are  *
+ * made from the file again when they are needed.                            *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class TileDecoder {
+   public static final int THUMBNAIL_SIZE = 150;
+   public static final int PREVIEW_SIZE = 40;
+   
+   private TileLibrary mLibrary;
+   private int mMinSize;
+   
+   /**
+    * @param library  Library thumbnails are cached in, may be null.
+    * @param tileSize Largest tile size the thumbnails will be scaled to.
+    */
+   public TileDecoder(TileLibrary library, int tileSize) {
+      mLibrary = library;
+      mMinSize = Math.max(THUMBNAIL_SIZE, tileSize);
+   }
+   
+   /**
+    * Takes the thumbnail from the tile library if it has one for the file,
+    * otherwise decodes the file and adds the thumbnail to the library.
+    * Can be called from several threads at once.
+    */
+   public BufferedImage thumbnail(File imageFile) throws IOException {
+      String key = TileLibrary.thumbnailKey(THUMBNAIL_SIZE);
+      if(mLibrary != null) {
+         BufferedImage image = mLibrary.readImage(imageFile, key);
+         if(image != null) {
+            return image;
+         }
+      }
+      
+      BufferedImage image = readImage(imageFile);
+      image = ProgressiveBilinear.progressiveScale(image, 
+            THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+      if(mLibrary != null) {
+         mLibrary.writeImage(imageFile, key, image);
+      }
+      return image;
+   }
+   
+   /**
+    * @return The thumbnail of the file scaled down to the preview size, for
+    *         lazy tiles.
+    */
+   public BufferedImage preview(File imageFile) throws IOException {
+      return ProgressiveBilinear.progressiveScale(thumbnail(imageFile), 
+            PREVIEW_SIZE, PREVIEW_SIZE);
+   }
+   
+   /**
+    * Decodes the file at the smallest size that covers the tile size given
+    * to the constructor, for renditions larger than the thumbnail. The
+    * result is not kept in the library.
+    */
+   public BufferedImage decode(File imageFile) throws IOException {
+      return readImage(imageFile);
+   }
+   
+   /**
+    * Decodes the file at the smallest size that is at least mMinSize in both
+    * directions (or at full size if it is smaller than that).
+    */
+   private BufferedImage readImage(File imageFile) throws IOException {
+      try(ImageInputStream in = ImageIO.createImageInputStream(imageFile)) {
+         Iterator<ImageReader> readers = 
+               in != null ? ImageIO.getImageReaders(in) : null;
+         if(readers == null || !readers.hasNext()) {
+            throw new IOException("No reader for " + imageFile.getName());
+         }
+         
+         ImageReader reader = readers.next();
+         try {
+            reader.setInput(in, false, false);
+            if(reader.readerSupportsThumbnails()) {
+               for(int i = 0; i < reader.getNumThumbnails(0); i++) {
+                  if(reader.getThumbnailWidth(0, i) >= mMinSize
+                        && reader.getThumbnailHeight(0, i) >= mMinSize) {
+                     return reader.readThumbnail(0, i);
+                  }
+               }
+            }
+            
+            int step = Math.min(reader.getWidth(0), reader.getHeight(0))
+                  /mMinSize;
+            ImageReadParam param = reader.getDefaultReadParam();
+            if(step > 1) {
+               param.setSourceSubsampling(step, step, 0, 0);
+            }
+            return reader.read(0, param);
+         } finally {
+            reader.dispose();
+         }
+      }
+   }
+}
@@ -0,0 +1,425 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                                 Tile Index                                *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    A vantage-point tree over small block signatures of the tiles. The     *
+ * signature of a raster is the mean colour of each block of a 4x4 grid,     *
+ * weighted by the square root of the share of pixels the block covers.      *
+ * Since the squared error over a block can never be smaller than the        *
+ * block's pixel count times the squared difference of the block means, the *
+ * euclidean distance between two signatures is a lower bound of the         *
+ * mismatch that MosaicMaker computes for the full rasters.                  *
+ *                                                                           *
+ *    In exact mode the tree is walked nearest-first and every tile whose    *
+ * lower bound could still beat the best mismatch found so far is checked    *
+ * exactly, so the selection is the same as a full scan. In approximate mode *
+ * only the k tiles with the nearest signatures are checked.                 *
+ *                                                                           *
+ *    The tree can also find the k tiles with the lowest exact mismatch. The *
+ * walk is the same as in exact mode, with the k-th best mismatch found so   *
+ * far as the bound.                                                         *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TileIndex {
+   /**
+    * Exact comparison of a single cell against the tiles of the index.
+    */
+   public interface Evaluator {
+      /**
+       * Exact mismatch of the tile, reuse penalty included. May return any
+       * value above the bound once it is clear that the mismatch exceeds it.
+       */
+      int mismatch(int tile, int bound);
+      /** Reuse penalty currently applied to the tile. */
+      int penalty(int tile);
+      /** Number of times the tile has been used. */
+      int useCount(int tile);
+      /** Whether the tile may be selected at all. */
+      boolean allowed(int tile);
+   }
+
+   public static final int GRID = 4;
+   public static final int SIGNATURE_LENGTH = GRID*GRID*3;
+
+   // Covers the float rounding done by the exact mismatch calculation.
+   private static final double MARGIN = 0.01;
+
+   private float mSignatures[];
+   private int mOrder[];
+   private int mMid[];
+   private double mMu[];
+
+   private LongAdder mQueries;
+   private LongAdder mEvaluated;
+
+   /**
+    * Builds the tree. The tile ids used by the queries are the positions
+    * of the signatures in the given array.
+    *
+    * @param signatures Signatures of the tiles packed back to back, as
+    *                   made by {@link #signature}.
+    * @param count      Number of signatures.
+    */
+   public TileIndex(float signatures[], int count) {
+      mSignatures = signatures;
+      mOrder = new int[count];
+      mMid = new int[count];
+      mMu = new double[count];
+      for(int i = 0; i < mOrder.length; i++) {
+         mOrder[i] = i;
+      }
+      build(0, mOrder.length, new double[mOrder.length]);
+
+      mQueries = new LongAdder();
+      mEvaluated = new LongAdder();
+   }
+
+   /**
+    * Calculates the block signature of a raster.
+    *
+    * @param raster         Interleaved pixel bytes.
+    * @param offset         Offset of the first pixel in the raster.
+    * @param scanlineStride Bytes from one row of the raster to the next.
+    * @param width          Width of the raster in pixels.
+    * @param height         Height of the raster in pixels.
+    * @param pixelStride    Bytes per pixel.
+    * @param firstColour    Offset of the first of the three colour bytes.
+    * @param signature      Array the signature is written to.
+    * @param sigOffset      Position of the signature in that array.
+    */
+   public static void signature(byte raster[], int offset, int scanlineStride,
+         int width, int height, int pixelStride, int firstColour,
+         float signature[], int sigOffset) {
+      int gridX = Math.min(GRID, width);
+      int gridY = Math.min(GRID, height);
+      float total = width*height;
+      Arrays.fill(signature, sigOffset, sigOffset + SIGNATURE_LENGTH, 0.0f);
+
+      for(int by = 0; by < gridY; by++) {
+         int y0 = by*height/gridY, y1 = (by + 1)*height/gridY;
+         for(int bx = 0; bx < gridX; bx++) {
+            int x0 = bx*width/gridX, x1 = (bx + 1)*width/gridX;
+            long c0 = 0, c1 = 0, c2 = 0;
+            for(int y = y0; y < y1; y++) {
+               int px = offset + y*scanlineStride + x0*pixelStride + firstColour;
+               for(int x = x0; x < x1; x++, px += pixelStride) {
+                  c0 += raster[px] & 0xff;
+                  c1 += raster[px+1] & 0xff;
+                  c2 += raster[px+2] & 0xff;
+               }
+            }
+            int count = (y1 - y0)*(x1 - x0);
+            double weight = Math.sqrt(count/total)/count;
+            int block = sigOffset + (by*GRID + bx)*3;
+            signature[block] = (float)(c0*weight);
+            signature[block+1] = (float)(c1*weight);
+            signature[block+2] = (float)(c2*weight);
+         }
+      }
+   }
+
+   /**
+    * Finds the tile with the lowest mismatch. Ties are resolved the same
+    * way as a full scan would: fewer uses first, then the lower id.
+    *
+    * @return The tile, or -1 if no tile is allowed.
+    */
+   public int nearest(float query[], Evaluator evaluator) {
+      Search search = new Search(query, evaluator);
+      search.visit(0, mOrder.length);
+      record(search.mEvaluated);
+      return search.mBest;
+   }
+
+   /**
+    * Finds the tile with the lowest mismatch like nearest, starting from a
+    * tile the caller has already checked, so that only tiles that could
+    * beat it are looked at.
+    *
+    * @return The tile, or -1 if no tile is allowed and none was given.
+    */
+   int nearest(float query[], Evaluator evaluator, int tile, int mismatch) {
+      Search search = new Search(query, evaluator);
+      if(tile >= 0) {
+         search.take(tile, mismatch);
+      }
+      search.visit(0, mOrder.length);
+      record(search.mEvaluated);
+      return search.mBest;
+   }
+
+   /**
+    * Checks only the tiles with the nearest signatures.
+    *
+    * @param candidates Number of tiles that will be checked exactly.
+    * @return The tile, or -1 if none of the candidates is allowed.
+    */
+   public int nearest(float query[], Evaluator evaluator, int candidates) {
+      int k = Math.min(candidates, mOrder.length);
+      PriorityQueue<double[]> nearest = new PriorityQueue<>(k + 1,
+            (a, b) -> a[0] != b[0] ? Double.compare(b[0], a[0])
+                                   : Double.compare(b[1], a[1]));
+      collect(query, 0, mOrder.length, k, nearest);
+
+      Search search = new Search(query, evaluator);
+      for(double candidate[]: nearest) {
+         search.evaluate((int)candidate[1]);
+      }
+      record(search.mEvaluated);
+      return search.mBest;
+   }
+
+   /**
+    * Finds the tiles with the lowest exact mismatch, as many as the
+    * collector keeps. Penalties, use counts and whether tiles are allowed
+    * are not looked at.
+    */
+   void nearest(float query[], Evaluator evaluator, TopTiles best) {
+      TopSearch search = new TopSearch(query, evaluator, best);
+      search.visit(0, mOrder.length);
+      record(search.mEvaluated);
+   }
+
+   public int size() {
+      return mOrder.length;
+   }
+
+   /** Number of exact mismatch calculations done so far. */
+   public long comparisons() {
+      return mEvaluated.sum();
+   }
+
+   /** Number of exact mismatch calculations the index made unnecessary. */
+   public long comparisonsAvoided() {
+      return mQueries.sum()*mOrder.length - mEvaluated.sum();
+   }
+
+   private void record(int evaluated) {
+      mQueries.increment();
+      mEvaluated.add(evaluated);
+   }
+
+   /* *********************************************************************** *
+    * Tree construction.                                                      *
+    * *********************************************************************** */
+   private void build(int lo, int hi, double distances[]) {
+      if(hi - lo < 2) {
+         if(lo < hi) {
+            mMid[lo] = hi;
+         }
+         return;
+      }
+
+      int vantage = mOrder[lo]*SIGNATURE_LENGTH;
+      for(int i = lo + 1; i < hi; i++) {
+         distances[i] = distance(mSignatures, vantage, mOrder[i]);
+      }
+      sortByDistance(lo + 1, hi, distances);
+
+      int mid = (lo + 1 + hi) >>> 1;
+      mMid[lo] = mid;
+      mMu[lo] = distances[mid];
+      build(lo + 1, mid, distances);
+      build(mid, hi, distances);
+   }
+
+   private void sortByDistance(int lo, int hi, double distances[]) {
+      Integer ids[] = new Integer[hi - lo];
+      for(int i = lo; i < hi; i++) {
+         ids[i - lo] = i;
+      }
+      Arrays.sort(ids, (a, b) -> {
+         int byDistance = Double.compare(distances[a], distances[b]);
+         return byDistance != 0 ? byDistance
+                                : Integer.compare(mOrder[a], mOrder[b]);
+      });
+
+      int order[] = new int[ids.length];
+      double sorted[] = new double[ids.length];
+      for(int i = 0; i < ids.length; i++) {
+         order[i] = mOrder[ids[i]];
+         sorted[i] = distances[ids[i]];
+      }
+      System.arraycopy(order, 0, mOrder, lo, order.length);
+      System.arraycopy(sorted, 0, distances, lo, sorted.length);
+   }
+
+   private double distance(float query[], int queryOffset, int id) {
+      int offset = id*SIGNATURE_LENGTH;
+      double sum = 0;
+      for(int i = 0; i < SIGNATURE_LENGTH; i++) {
+         double d = query[queryOffset+i] - mSignatures[offset+i];
+         sum += d*d;
+      }
+      return Math.sqrt(sum);
+   }
+
+   /* *********************************************************************** *
+    * Queries.                                                                *
+    * *********************************************************************** */
+   private void collect(float query[], int lo, int hi, int k,
+         PriorityQueue<double[]> nearest) {
+      if(lo >= hi) {
+         return;
+      }
+
+      int id = mOrder[lo];
+      double d = distance(query, 0, id);
+      nearest.add(new double[] {d, id});
+      if(nearest.size() > k) {
+         nearest.poll();
+      }
+
+      int mid = mMid[lo];
+      double mu = mMu[lo];
+      if(d < mu) {
+         collect(query, lo + 1, mid, k, nearest);
+         if(nearest.size() < k || mu - d <= nearest.peek()[0]) {
+            collect(query, mid, hi, k, nearest);
+         }
+      } else {
+         collect(query, mid, hi, k, nearest);
+         if(nearest.size() < k || d - mu <= nearest.peek()[0]) {
+            collect(query, lo + 1, mid, k, nearest);
+         }
+      }
+   }
+
+   private class Search {
+      private final float mQuery[];
+      private final Evaluator mEvaluator;
+
+      int mBest = -1;
+      int mBestMismatch = Integer.MAX_VALUE;
+      int mBestUseCount;
+      int mEvaluated;
+
+      Search(float query[], Evaluator evaluator) {
+         mQuery = query;
+         mEvaluator = evaluator;
+      }
+
+      void visit(int lo, int hi) {
+         if(lo >= hi) {
+            return;
+         }
+
+         int id = mOrder[lo];
+         double d = distance(mQuery, 0, id);
+         if(lowerBound(d) + mEvaluator.penalty(id) <= mBestMismatch) {
+            evaluate(id);
+         }
+
+         int mid = mMid[lo];
+         double mu = mMu[lo];
+         if(d < mu) {
+            visit(lo + 1, mid);
+            if(mu - d <= radius()) {
+               visit(mid, hi);
+            }
+         } else {
+            visit(mid, hi);
+            if(d - mu <= radius()) {
+               visit(lo + 1, mid);
+            }
+         }
+      }
+
+      void evaluate(int id) {
+         if(!mEvaluator.allowed(id)) {
+            return;
+         }
+         mEvaluated++;
+         int mismatch = mEvaluator.mismatch(id, mBestMismatch);
+         if(mismatch < mBestMismatch) {
+            take(id, mismatch);
+         } else if(mismatch == mBestMismatch) {
+            int useCount = mEvaluator.useCount(id);
+            if(useCount < mBestUseCount
+                  || (useCount == mBestUseCount && id < mBest)) {
+               take(id, mismatch);
+            }
+         }
+      }
+
+      void take(int id, int mismatch) {
+         mBest = id;
+         mBestMismatch = mismatch;
+         mBestUseCount = mEvaluator.useCount(id);
+      }
+
+      private double radius() {
+         if(mBestMismatch == Integer.MAX_VALUE) {
+            return Double.POSITIVE_INFINITY;
+         }
+         return mBestMismatch + 2 + MARGIN;
+      }
+   }
+
+   /**
+    * Smallest value the exact mismatch can take for a tile at the given
+    * signature distance, allowing for the truncation to int.
+    */
+   private static long lowerBound(double distance) {
+      return Math.max(0, (long)Math.floor(distance - MARGIN) - 1);
+   }
+
+   private class TopSearch {
+      private final float mQuery[];
+      private final Evaluator mEvaluator;
+      private final TopTiles mBest;
+
+      int mEvaluated;
+
+      TopSearch(float query[], Evaluator evaluator, TopTiles best) {
+         mQuery = query;
+         mEvaluator = evaluator;
+         mBest = best;
+      }
+
+      void visit(int lo, int hi) {
+         if(lo >= hi) {
+            return;
+         }
+
+         int id = mOrder[lo];
+         double d = distance(mQuery, 0, id);
+         if(lowerBound(d) <= mBest.bound()) {
+            mEvaluated++;
+            int bound = mBest.bound();
+            mBest.offer(id, mEvaluator.mismatch(id, bound));
+         }
+
+         int mid = mMid[lo];
+         double mu = mMu[lo];
+         if(d < mu) {
+            visit(lo + 1, mid);
+            if(mu - d <= radius()) {
+               visit(mid, hi);
+            }
+         } else {
+            visit(mid, hi);
+            if(d - mu <= radius()) {
+               visit(lo + 1, mid);
+            }
+         }
+      }
+
+      private double radius() {
+         int bound = mBest.bound();
+         if(bound == Integer.MAX_VALUE) {
+            return Double.POSITIVE_INFINITY;
+         }
+         return bound + 2 + MARGIN;
+      }
+   }
+}
@@ -0,0 +1,571 @@
+package mosaicgenerator.utils;
+
+/* ************************************************************************* *
+ *                                Tile Library                               *
+ * ************************************************************************* *
+ *                                                                           *
+ * Description:                                                              *
+ *                                                                           *
+ *    A file on disk that keeps the prepared data of tile images between     *
+ * runs, so that they don't have to be decoded and scaled again. Every image *
+ * file gets an entry, keyed by its absolute path and checked against its    *
+ * size and modification time. An entry holds any number of renditions      *
+ * (thumbnails, scaled tiles, cell-sized rasters, signatures), each stored   *
+ * as a blob of bytes under a key that describes it.                         *
+ *                                                                           *
+ *    The file is opened with a memory-mapped FileChannel. Opening it only   *
+ * reads the index; the blobs are read straight from the mapping when they   *
+ * are asked for.                                                            *
+ *                                                                           *
+ * File layout:                                                              *
+ *                                                                           *
+ *    header   magic (8 bytes), version (int), entry count (int),            *
+ *             index offset (long)                                           *
+ *    blobs    raw rendition data                                            *
+ *    index    for every entry: path, size, modification time, rendition   *
+ *             count, and for every rendition: key, blob offset, length      *
+ *                                                                           *
+ *    New blobs are appended after the current index and followed by a new   *
+ * index; the header is rewritten last. When more than half of the file is   *
+ * no longer referenced, the library is rewritten from scratch.              *
+ *                                                                           *
+ *    New blobs are kept in memory until the next save, but once they add up *
+ * to PENDING_BYTES they are appended to the file right away, so filling a   *
+ * large library from scratch does not hold all of it in the heap. Until the *
+ * index is written they are not referenced by the file; a library that is   *
+ * not saved after that just carries them as unused bytes.                   *
+ *                                                                           *
+ * ************************************************************************* */
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TileLibrary {
+   private static final long MAGIC = 0x4d4f534149434c42L; // "MOSAICLB"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 24;
+
+   // Blobs never straddle a segment, so each one can be read from a single
+   // mapping.
+   private static final long SEGMENT_SIZE = 1L << 30;
+
+   // Bytes of new blobs kept in memory before they are appended.
+   private static final long PENDING_BYTES = 32L << 20;
+
+   private static class Blob {
+      long mOffset;
+      int mLength;
+      byte mPending[];
+   }
+
+   private static class Entry {
+      long mSize;
+      long mModified;
+      HashMap<String, Blob> mBlobs = new HashMap<>();
+   }
+
+   private File mFile;
+   private FileChannel mChannel;
+   private ArrayList<MappedByteBuffer> mSegments;
+   private HashMap<String, Entry> mEntries;
+   private long mFileSize;
+   private long mLiveBytes;
+   private long mPendingBytes;
+   private boolean mDirty;
+
+   private TileLibrary(File file) {
+      mFile = file;
+      mSegments = new ArrayList<>();
+      mEntries = new HashMap<>();
+   }
+
+   /**
+    * Opens a library file, creating it if it does not exist yet. A file
+    * that cannot be read as a library is started over.
+    */
+   public static TileLibrary open(File file) throws IOException {
+      File parent = file.getAbsoluteFile().getParentFile();
+      if(parent != null) {
+         parent.mkdirs();
+      }
+
+      TileLibrary library = new TileLibrary(file);
+      library.mChannel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+      try {
+         library.readIndex();
+      } catch(IOException | RuntimeException corrupt) {
+         library.mEntries.clear();
+         library.mLiveBytes = 0;
+         library.mChannel.truncate(0);
+         library.writeHeader(0, HEADER_SIZE);
+         library.mFileSize = HEADER_SIZE;
+      }
+      library.map();
+      return library;
+   }
+
+   /* *********************************************************************** *
+    * Rendition keys.                                                         *
+    * *********************************************************************** */
+   public static String hashKey() {
+      return "content hash";
+   }
+   
+   public static String thumbnailKey(int size) {
+      return "thumbnail " + size;
+   }
+
+   public static String tileKey(Dimension tileSize) {
+      return "tile " + tileSize.width + "x" + tileSize.height;
+   }
+
+   public static String cellKey(Dimension cellSize, int type) {
+      return "cell " + cellSize.width + "x" + cellSize.height + " " + type;
+   }
+
+   public static String signatureKey(Dimension cellSize, int type) {
+      return "signature " + TileIndex.GRID + " "
+            + cellSize.width + "x" + cellSize.height + " " + type;
+   }
+
+   /* *********************************************************************** *
+    * Reading and writing renditions.                                         *
+    * *********************************************************************** */
+
+   /**
+    * @return The rendition of the file stored under the key, or null if
+    *         there is none or the file changed since it was stored.
+    */
+   public ByteBuffer read(File source, String key) {
+      // The file is looked at before taking the lock, so that readers on
+      // other threads are not held up by the file system.
+      long size = source.length(), modified = source.lastModified();
+      synchronized(this) {
+         Entry entry = lookup(source.getAbsolutePath(), size, modified);
+         Blob blob = entry != null ? entry.mBlobs.get(key) : null;
+         if(blob == null) {
+            return null;
+         }
+         if(blob.mPending != null) {
+            return ByteBuffer.wrap(blob.mPending).asReadOnlyBuffer();
+         }
+         // A save may move the blob and map the file again, so the slice
+         // is taken before the lock is released. It keeps the mapping it
+         // was taken from alive.
+         return mapped(blob).slice();
+      }
+   }
+
+   /**
+    * Stores a rendition of the file. It is written to disk by the next call
+    * to {@link #save()}, or earlier if many renditions are waiting.
+    */
+   public void write(File source, String key, byte data[]) {
+      String path = source.getAbsolutePath();
+      long size = source.length(), modified = source.lastModified();
+      synchronized(this) {
+         Entry entry = lookup(path, size, modified);
+         if(entry == null) {
+            entry = new Entry();
+            entry.mSize = size;
+            entry.mModified = modified;
+            mEntries.put(path, entry);
+         }
+
+         Blob blob = new Blob();
+         blob.mLength = data.length;
+         blob.mPending = data;
+         Blob old = entry.mBlobs.put(key, blob);
+         if(old != null) {
+            dropBlob(old);
+         }
+         mLiveBytes += data.length;
+         mPendingBytes += data.length;
+         mDirty = true;
+         
+         if(mPendingBytes > PENDING_BYTES) {
+            try {
+               appendPending();
+            } catch(IOException ex) {
+               // The blobs stay in memory; the next save tries again and
+               // reports the error.
+            }
+         }
+      }
+   }
+
+   /**
+    * Keeps the renditions of a file whose size or modification time changed
+    * although its contents did not.
+    *
+    * @param size     Size of the file when the renditions were stored.
+    * @param modified Modification time of the file at that point.
+    */
+   public void revalidate(File source, long size, long modified) {
+      long newSize = source.length(), newModified = source.lastModified();
+      synchronized(this) {
+         Entry entry = mEntries.get(source.getAbsolutePath());
+         if(entry != null && entry.mSize == size
+               && entry.mModified == modified) {
+            entry.mSize = newSize;
+            entry.mModified = newModified;
+            mDirty = true;
+         }
+      }
+   }
+   
+   /**
+    * Drops every rendition of the file.
+    */
+   public synchronized void remove(File source) {
+      Entry entry = mEntries.remove(source.getAbsolutePath());
+      if(entry != null) {
+         dropBlobs(entry);
+         mDirty = true;
+      }
+   }
+
+   public BufferedImage readImage(File source, String key) {
+      ByteBuffer buffer = read(source, key);
+      if(buffer == null) {
+         return null;
+      }
+
+      int width = buffer.getInt();
+      int height = buffer.getInt();
+      int type = buffer.getInt();
+      BufferedImage image = new BufferedImage(width, height, type);
+      DataBuffer data = image.getRaster().getDataBuffer();
+      if(data instanceof DataBufferInt) {
+         buffer.asIntBuffer().get(((DataBufferInt)data).getData());
+      } else {
+         buffer.get(((DataBufferByte)data).getData());
+      }
+      return image;
+   }
+
+   public void writeImage(File source, String key, BufferedImage image) {
+      image = toStorableImage(image);
+      DataBuffer data = image.getRaster().getDataBuffer();
+      int length = data instanceof DataBufferInt ?
+            data.getSize()*4 : data.getSize();
+
+      ByteBuffer buffer = ByteBuffer.allocate(12 + length);
+      buffer.putInt(image.getWidth());
+      buffer.putInt(image.getHeight());
+      buffer.putInt(image.getType());
+      if(data instanceof DataBufferInt) {
+         buffer.asIntBuffer().put(((DataBufferInt)data).getData());
+      } else {
+         buffer.put(((DataBufferByte)data).getData());
+      }
+      write(source, key, buffer.array());
+   }
+
+   private static BufferedImage toStorableImage(BufferedImage image) {
+      switch(image.getType()) {
+      case BufferedImage.TYPE_INT_RGB:
+      case BufferedImage.TYPE_INT_ARGB:
+      case BufferedImage.TYPE_INT_BGR:
+      case BufferedImage.TYPE_3BYTE_BGR:
+      case BufferedImage.TYPE_4BYTE_ABGR:
+      case BufferedImage.TYPE_BYTE_GRAY:
+         if(image.getRaster().getDataBuffer().getNumBanks() == 1
+               && image.getRaster().getDataBuffer().getOffset() == 0) {
+            return image;
+         }
+      }
+
+      int type = image.getColorModel().hasAlpha() ?
+            BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+      BufferedImage copy = new BufferedImage(
+            image.getWidth(), image.getHeight(), type);
+      Graphics2D g2 = copy.createGraphics();
+      g2.setComposite(AlphaComposite.Src);
+      g2.drawImage(image, 0, 0, null);
+      g2.dispose();
+      return copy;
+   }
+
+   /**
+    * @return The entry of the file, or null if there is none or it was
+    *         stored for a different size or modification time.
+    */
+   private Entry lookup(String path, long size, long modified) {
+      Entry entry = mEntries.get(path);
+      if(entry != null && (entry.mSize != size
+            || entry.mModified != modified)) {
+         mEntries.remove(path);
+         dropBlobs(entry);
+         mDirty = true;
+         entry = null;
+      }
+      return entry;
+   }
+
+   private void dropBlobs(Entry entry) {
+      for(Blob blob: entry.mBlobs.values()) {
+         dropBlob(blob);
+      }
+   }
+   
+   private void dropBlob(Blob blob) {
+      mLiveBytes -= blob.mLength;
+      if(blob.mPending != null) {
+         mPendingBytes -= blob.mLength;
+      }
+   }
+
+   /* *********************************************************************** *
+    * File handling.                                                          *
+    * *********************************************************************** */
+
+   /**
+    * Writes the renditions stored since the last save to disk.
+    */
+   public synchronized void save() throws IOException {
+      if(!mDirty) {
+         return;
+      }
+      if(mFileSize - HEADER_SIZE > 2*mLiveBytes) {
+         try {
+            rewrite();
+            return;
+         } catch(IOException ex) {
+            // The old file may still be mapped (this fails on Windows).
+            // Keep appending to it instead.
+         }
+      }
+
+      appendPending();
+      long position = mFileSize;
+      byte index[] = encodeIndex();
+      writeFully(mChannel, ByteBuffer.wrap(index), position);
+      mChannel.force(false);
+      writeHeader(mEntries.size(), position);
+      mChannel.force(false);
+      mFileSize = position + index.length;
+      mDirty = false;
+      map();
+   }
+
+   /**
+    * Appends the blobs that are still in memory after the end of the file
+    * and maps them. The index is left to the next save.
+    */
+   private void appendPending() throws IOException {
+      long position = mFileSize;
+      for(Entry entry: mEntries.values()) {
+         for(Blob blob: entry.mBlobs.values()) {
+            if(blob.mPending != null) {
+               position = align(position, blob.mLength);
+               writeFully(mChannel, ByteBuffer.wrap(blob.mPending), position);
+               blob.mOffset = position;
+               blob.mPending = null;
+               position += blob.mLength;
+            }
+         }
+      }
+      if(position != mFileSize) {
+         mFileSize = position;
+         map();
+      }
+      mPendingBytes = 0;
+   }
+
+   public synchronized void close() throws IOException {
+      save();
+      mSegments.clear();
+      mChannel.close();
+   }
+
+   private void rewrite() throws IOException {
+      File temp = new File(mFile.getPath() + ".tmp");
+      try(FileChannel out = FileChannel.open(temp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+         long position = HEADER_SIZE;
+         HashMap<Blob, Long> offsets = new HashMap<>();
+         for(Entry entry: mEntries.values()) {
+            for(Blob blob: entry.mBlobs.values()) {
+               ByteBuffer data = blob.mPending != null ?
+                     ByteBuffer.wrap(blob.mPending) : mapped(blob);
+               position = align(position, blob.mLength);
+               writeFully(out, data, position);
+               offsets.put(blob, position);
+               position += blob.mLength;
+            }
+         }
+
+         // Only update the blobs once nothing can fail anymore.
+         long indexOffset = position;
+         for(Map.Entry<Blob, Long> moved: offsets.entrySet()) {
+            moved.getKey().mOffset = moved.getValue();
+         }
+         byte index[] = encodeIndex();
+         writeFully(out, ByteBuffer.wrap(index), indexOffset);
+         writeFully(out, header(mEntries.size(), indexOffset), 0);
+         out.force(true);
+
+         mSegments.clear();
+         mChannel.close();
+         Files.move(temp.toPath(), mFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+         for(Blob blob: offsets.keySet()) {
+            blob.mPending = null;
+         }
+         mPendingBytes = 0;
+         mFileSize = indexOffset + index.length;
+      } finally {
+         if(!mChannel.isOpen()) {
+            mChannel = FileChannel.open(mFile.toPath(),
+                  StandardOpenOption.READ, StandardOpenOption.WRITE);
+            map();
+         }
+         temp.delete();
+      }
+      mDirty = false;
+   }
+
+   private ByteBuffer mapped(Blob blob) {
+      int segment = (int)(blob.mOffset/SEGMENT_SIZE);
+      int position = (int)(blob.mOffset%SEGMENT_SIZE);
+      ByteBuffer buffer = mSegments.get(segment).duplicate();
+      buffer.position(position);
+      buffer.limit(position + blob.mLength);
+      return buffer;
+   }
+
+   private void readIndex() throws IOException {
+      mFileSize = mChannel.size();
+      if(mFileSize == 0) {
+         writeHeader(0, HEADER_SIZE);
+         mFileSize = HEADER_SIZE;
+         return;
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(header, 0);
+      header.flip();
+      if(header.getLong() != MAGIC || header.getInt() != VERSION) {
+         throw new IOException("Not a tile library.");
+      }
+      int count = header.getInt();
+      long indexOffset = header.getLong();
+      if(indexOffset < HEADER_SIZE || indexOffset > mFileSize) {
+         throw new IOException("Index outside of the library.");
+      }
+
+      // Blobs appended after the index by a run that was not saved may
+      // follow it, so it is read as a stream rather than up to the end.
+      mChannel.position(indexOffset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(mChannel)));
+      for(int i = 0; i < count; i++) {
+         String path = in.readUTF();
+         Entry entry = new Entry();
+         entry.mSize = in.readLong();
+         entry.mModified = in.readLong();
+         int blobs = in.readInt();
+         for(int j = 0; j < blobs; j++) {
+            String key = in.readUTF();
+            Blob blob = new Blob();
+            blob.mOffset = in.readLong();
+            blob.mLength = in.readInt();
+            if(blob.mOffset + blob.mLength > indexOffset) {
+               throw new IOException("Blob outside of the library.");
+            }
+            entry.mBlobs.put(key, blob);
+            mLiveBytes += blob.mLength;
+         }
+         mEntries.put(path, entry);
+      }
+   }
+
+   private byte[] encodeIndex() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for(Map.Entry<String, Entry> item: mEntries.entrySet()) {
+         Entry entry = item.getValue();
+         out.writeUTF(item.getKey());
+         out.writeLong(entry.mSize);
+         out.writeLong(entry.mModified);
+         out.writeInt(entry.mBlobs.size());
+         for(Map.Entry<String, Blob> rendition: entry.mBlobs.entrySet()) {
+            out.writeUTF(rendition.getKey());
+            out.writeLong(rendition.getValue().mOffset);
+            out.writeInt(rendition.getValue().mLength);
+         }
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private void map() throws IOException {
+      mSegments.clear();
+      for(long start = 0; start < mFileSize; start += SEGMENT_SIZE) {
+         long length = Math.min(SEGMENT_SIZE, mFileSize - start);
+         mSegments.add(mChannel.map(FileChannel.MapMode.READ_ONLY,
+               start, length));
+      }
+   }
+
+   private void writeHeader(int count, long indexOffset) throws IOException {
+      writeFully(mChannel, header(count, indexOffset), 0);
+   }
+
+   private static ByteBuffer header(int count, long indexOffset) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putLong(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(count);
+      header.putLong(indexOffset);
+      header.flip();
+      return header;
+   }
+
+   private static long align(long position, int length) {
+      long segmentEnd = (position/SEGMENT_SIZE + 1)*SEGMENT_SIZE;
+      return position + length > segmentEnd ? segmentEnd : position;
+   }
+
+   private void readFully(ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()) {
+         int read = mChannel.read(buffer, position);
+         if(read < 0) {
+            throw new IOException("Unexpected end of the tile library.");
+         }
+         position += read;
+      }
+   }
+
+   private static void writeFully(FileChannel channel, ByteBuffer buffer,
+         long position) throws IOException {
+      while(buffer.hasRemaining()) {
+         position += channel.write(buffer, position);
+      }
+   }
+}
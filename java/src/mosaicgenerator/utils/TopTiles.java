@@ -0,0 +1,105 @@
+package mosaicgenerator.utils;
+
+/**
+ * Keeps the k tiles with the lowest mismatch offered so far, on a max-heap
+ * so the worst of them can be replaced quickly. Ties go to the lower tile
+ * id, so the result does not depend on the order the tiles are offered in.
+ */
+class TopTiles {
+   private final int mTiles[];
+   private final int mMismatches[];
+   private int mSize;
+
+   TopTiles(int k) {
+      mTiles = new int[Math.max(1, k)];
+      mMismatches = new int[mTiles.length];
+   }
+
+   void clear() {
+      mSize = 0;
+   }
+
+   /**
+    * @return Mismatch a tile has to beat to be kept, Integer.MAX_VALUE
+    *         while fewer than k tiles are kept.
+    */
+   int bound() {
+      return mSize < mTiles.length ? Integer.MAX_VALUE : mMismatches[0];
+   }
+
+   void offer(int tile, int mismatch) {
+      if(mSize < mTiles.length) {
+         mTiles[mSize] = tile;
+         mMismatches[mSize] = mismatch;
+         siftUp(mSize++);
+      } else if(worse(mTiles[0], mMismatches[0], tile, mismatch)) {
+         mTiles[0] = tile;
+         mMismatches[0] = mismatch;
+         siftDown(0);
+      }
+   }
+
+   /**
+    * Copies the kept tiles out, best first, and clears the heap.
+    *
+    * @return Number of tiles copied.
+    */
+   int drain(int tiles[], int mismatches[], int offset) {
+      int count = mSize;
+      for(int i = count - 1; i >= 0; i--) {
+         tiles[offset + i] = mTiles[0];
+         mismatches[offset + i] = mMismatches[0];
+         mSize--;
+         if(mSize > 0) {
+            mTiles[0] = mTiles[mSize];
+            mMismatches[0] = mMismatches[mSize];
+            siftDown(0);
+         }
+      }
+      return count;
+   }
+
+   /** @return Whether the first tile is worse than the second. */
+   private static boolean worse(int tile1, int mismatch1, int tile2,
+         int mismatch2) {
+      return mismatch1 > mismatch2 || (mismatch1 == mismatch2 && tile1 > tile2);
+   }
+
+   private void siftUp(int i) {
+      while(i > 0) {
+         int parent = (i - 1)/2;
+         if(!worse(mTiles[i], mMismatches[i],
+               mTiles[parent], mMismatches[parent])) {
+            return;
+         }
+         swap(i, parent);
+         i = parent;
+      }
+   }
+
+   private void siftDown(int i) {
+      while(true) {
+         int worst = i;
+         for(int child = 2*i + 1; child <= 2*i + 2 && child < mSize; child++) {
+            if(worse(mTiles[child], mMismatches[child],
+                  mTiles[worst], mMismatches[worst])) {
+               worst = child;
+            }
+         }
+         if(worst == i) {
+            return;
+         }
+         swap(i, worst);
+         i = worst;
+      }
+   }
+
+   private void swap(int i, int j) {
+      int tile = mTiles[i];
+      mTiles[i] = mTiles[j];
+      mTiles[j] = tile;
+      int mismatch = mMismatches[i];
+      mMismatches[i] = mMismatches[j];
+      mMismatches[j] = mismatch;
+   }
+}